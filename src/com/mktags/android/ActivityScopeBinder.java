@@ -0,0 +1,80 @@
+package com.mktags.android;
+
+import java.lang.ref.WeakReference;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.app.Application.ActivityLifecycleCallbacks;
+import android.os.Bundle;
+
+/**
+ * Internal helper used by {@link Mktags} to cancel its calls when its
+ * {@link Activity} is destroyed. Activity lifecycle callbacks are only
+ * available since API level 14, so this class must not be loaded on older
+ * versions.
+ */
+@TargetApi(14)
+class ActivityScopeBinder implements ActivityLifecycleCallbacks {
+
+	private Application m_application;
+	private WeakReference<Activity> m_activity;
+	private WeakReference<Mktags> m_mktags;
+
+	/**
+	 * Cancel the calls of a {@link Mktags} instance when an activity is
+	 * destroyed.
+	 * 
+	 * @param activity
+	 *            The activity
+	 * @param mktags
+	 *            The instance, which is not kept alive by the binding
+	 */
+	public static void bind(Activity activity, Mktags mktags) {
+		new ActivityScopeBinder(activity, mktags);
+	}
+
+	private ActivityScopeBinder(Activity activity, Mktags mktags) {
+		m_application = activity.getApplication();
+		m_activity = new WeakReference<Activity>(activity);
+		m_mktags = new WeakReference<Mktags>(mktags);
+		m_application.registerActivityLifecycleCallbacks(this);
+	}
+
+	@Override
+	public void onActivityDestroyed(Activity activity) {
+		Activity bound = m_activity.get();
+		if (bound != null && bound != activity)
+			return;
+
+		m_application.unregisterActivityLifecycleCallbacks(this);
+		Mktags mktags = m_mktags.get();
+		if (mktags != null)
+			mktags.cancelAll();
+	}
+
+	@Override
+	public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+	}
+
+	@Override
+	public void onActivityStarted(Activity activity) {
+	}
+
+	@Override
+	public void onActivityResumed(Activity activity) {
+	}
+
+	@Override
+	public void onActivityPaused(Activity activity) {
+	}
+
+	@Override
+	public void onActivityStopped(Activity activity) {
+	}
+
+	@Override
+	public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.mktags.android;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mktags.android.api.AbstractApiCallback;
+
+/**
+ * Abstract callback of {@link Mktags#priceBatch} that extracts the prices from
+ * the result JSON and handles all errors by logging them.
+ * 
+ * <p>
+ * To get more error handling control, override any of the <code>onX</code>
+ * methods. An error is reported once for the whole batch.
+ * </p>
+ */
+public abstract class BatchPriceCallback extends AbstractApiCallback {
+
+	/**
+	 * Called when the prices of all the tag selections are ready.
+	 * 
+	 * @see Mktags#priceBatch(java.util.List, BatchPriceCallback)
+	 * 
+	 * @param prices
+	 *            The prices in USD, in the order of the tag selections
+	 */
+	protected abstract void onResult(double[] prices);
+
+	@Override
+	public void onSuccess(JSONObject result) throws JSONException {
+		JSONArray json = result.getJSONArray("prices");
+		double[] prices = new double[json.length()];
+		for (int i = 0; i < prices.length; i++)
+			prices[i] = json.getDouble(i);
+		onResult(prices);
+	}
+
+}
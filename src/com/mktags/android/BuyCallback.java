@@ -29,7 +29,9 @@ public class BuyCallback extends VerboseApiCallback {
 	@Override
 	public void onSuccess(JSONObject result) throws JSONException {
 		super.onSuccess(result);
-		UiUtils.openUrl(getContext(), result.getString("url"));
+		Context context = getContext();
+		if (context != null)
+			UiUtils.openUrl(context, result.getString("url"));
 	}
 
 }
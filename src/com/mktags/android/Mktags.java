@@ -1,18 +1,32 @@
 package com.mktags.android;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import android.Manifest.permission;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.nfc.NdefMessage;
+import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
+import com.mktags.android.api.ApiCallback;
+import com.mktags.android.api.ApiFuture;
 import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.ApiTransport;
+import com.mktags.android.api.MetricsAggregator;
+import com.mktags.android.api.MetricsListener;
+import com.mktags.android.api.OfflineQueue;
+import com.mktags.android.api.RequestScope;
+import com.mktags.android.api.SharedHttpTransport;
 import com.mktags.android.tags.TagDescriptorList;
+import com.mktags.android.tags.TagDescriptorSource;
 import com.mktags.android.test.TestDialogCallback;
 
 /**
@@ -29,6 +43,13 @@ import com.mktags.android.test.TestDialogCallback;
  * the callbacks.
  * </p>
  * 
+ * <p>
+ * When created with an {@link Activity}, all calls still in progress are
+ * cancelled once the activity is destroyed, so it isn't leaked by their
+ * callbacks. On Android versions older than 4.0, call {@link #cancelAll()} from
+ * <code>onDestroy()</code> instead.
+ * </p>
+ * 
  * <h3>Example</h3>
  * 
  * <pre>
@@ -77,11 +98,23 @@ import com.mktags.android.test.TestDialogCallback;
  */
 public class Mktags {
 
+	private static final long PRICE_FEED_DELAY = 250;
+
 	private Context m_context;
+	private String m_apiKey;
+	private ApiTransport m_transport;
 	private ApiPoster m_apiPoster;
+	private Handler m_handler;
+	private PriceDebouncer m_priceDebouncer;
+	private PriceCache m_priceCache;
+	private OfflineQueue m_offlineQueue;
+	private RequestScope m_scope = new RequestScope();
+	private volatile boolean m_quantitiesEnabled;
 
 	/**
-	 * Constructor.
+	 * Constructor. Instances are cheap, since all instances with the same API
+	 * key share the same connections and state, which are only set up when
+	 * the first call is made.
 	 * 
 	 * @param context
 	 *            context to be used for UI interactions and for handling
@@ -90,14 +123,100 @@ public class Mktags {
 	 *            a valid mktags API key
 	 */
 	public Mktags(Context context, String apiKey) {
-		PackageManager pm = context.getPackageManager();
-		String pkg = context.getPackageName();
-		int perm = pm.checkPermission(permission.INTERNET, pkg);
-		if (perm != PackageManager.PERMISSION_GRANTED)
-			Log.wtf(Consts.TAG, "Missing required permission INTERNET");
+		this(context, apiKey, null);
+	}
 
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            context to be used for UI interactions and for handling
+	 *            callbacks
+	 * @param apiKey
+	 *            a valid mktags API key
+	 * @param transport
+	 *            transport used to send requests, or <code>null</code> for
+	 *            the default {@link SharedHttpTransport}
+	 */
+	public Mktags(Context context, String apiKey, ApiTransport transport) {
 		m_context = context;
-		m_apiPoster = new ApiPoster(context, apiKey);
+		m_apiKey = apiKey;
+		m_transport = transport;
+		m_handler = new Handler(context.getMainLooper());
+
+		if (context instanceof Activity && Build.VERSION.SDK_INT >= 14)
+			ActivityScopeBinder.bind((Activity) context, this);
+	}
+
+	/**
+	 * <p>
+	 * Cancel all the calls made through this instance that are still in
+	 * progress. Their callbacks are never notified.
+	 * </p>
+	 * 
+	 * <p>
+	 * This is done automatically when the {@link Activity} passed in the
+	 * constructor is destroyed, starting with Android 4.0. On older versions,
+	 * call this method from <code>onDestroy()</code>.
+	 * </p>
+	 */
+	public void cancelAll() {
+		m_scope.cancelAll();
+		if (m_priceDebouncer != null)
+			m_priceDebouncer.cancel();
+	}
+
+	/**
+	 * <p>
+	 * Open a connection to mktags in the background, so the first call made
+	 * later doesn't have to wait for the connection to be established. Call it
+	 * as early as possible, for example when the shopping screen is created.
+	 * </p>
+	 * 
+	 * <p>
+	 * Connections are shared by all instances of this class, so one call is
+	 * enough for the whole app. This method never blocks.
+	 * </p>
+	 */
+	public void prefetchConnection() {
+		getApiPoster().prefetchConnection();
+	}
+
+	/**
+	 * Get the time it took to get the first price in this process.
+	 * 
+	 * @see ApiPoster#getTimeToFirstPrice()
+	 * 
+	 * @return Time in milliseconds, or -1 if no price was received yet
+	 */
+	public static long getTimeToFirstPrice() {
+		return ApiPoster.getTimeToFirstPrice();
+	}
+
+	/**
+	 * Measure every call made in this process, and report the measurements
+	 * to a listener. Use a {@link MetricsAggregator} to collect latency
+	 * histograms and outcome counts by API.
+	 * 
+	 * @see ApiPoster#setMetricsListener(MetricsListener)
+	 * 
+	 * @param listener
+	 *            Listener to register, or <code>null</code> to stop measuring
+	 */
+	public static void setMetricsListener(MetricsListener listener) {
+		ApiPoster.setMetricsListener(listener);
+	}
+
+	/**
+	 * Get the number of calls that shared the request of an identical call
+	 * that was already in flight, instead of making their own.
+	 * 
+	 * @see ApiPoster#getCoalescedCount()
+	 * 
+	 * @return Number of shared calls made with the same API key and transport
+	 */
+	public long getCoalescedCount() {
+		return getApiPoster().getCoalescedCount();
 	}
 
 	/**
@@ -117,13 +236,284 @@ public class Mktags {
 	 * {@link PriceCallback}.
 	 * </p>
 	 * 
+	 * <p>
+	 * In price-feed mode, enabled by {@link #setPriceDebounce(long)}, only the
+	 * price of the latest tag selection is reported. Callbacks of older calls
+	 * are never notified.
+	 * </p>
+	 * 
+	 * <p>
+	 * If a {@link PriceCache} is set with {@link #setPriceCache(PriceCache)},
+	 * cached prices are reported without calling the remote API. While the
+	 * service is unavailable, the last known price is reported even if it
+	 * expired.
+	 * </p>
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price will be checked
+	 * @param callback
+	 *            {@link PriceCallback} to notify
+	 */
+	public void price(TagDescriptorSource tags, final PriceCallback callback) {
+		ApiCallback apiCallback = callback;
+
+		if (m_priceCache != null) {
+			PriceCache.Key key = PriceCache.key(m_apiKey, tags);
+			final Double price = m_priceCache.get(key);
+			if (price != null) {
+				if (m_priceDebouncer != null)
+					m_priceDebouncer.cancel();
+				m_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						callback.onResult(price.doubleValue());
+					}
+				});
+				return;
+			}
+
+			apiCallback = m_priceCache.wrap(key, callback);
+		}
+
+		if (m_priceDebouncer != null)
+			m_priceDebouncer.price(wire(tags), apiCallback);
+		else
+			m_scope.add(getApiPoster().post("price", wire(tags), null,
+					apiCallback));
+	}
+
+	/**
+	 * Same as {@link #price(TagDescriptorSource, PriceCallback)}, for apps
+	 * built against earlier versions of the SDK.
+	 * 
 	 * @param tags
 	 *            Description of tags for which the price will be checked
 	 * @param callback
 	 *            {@link PriceCallback} to notify
 	 */
 	public void price(TagDescriptorList tags, PriceCallback callback) {
-		m_apiPoster.post("price", tags, null, callback);
+		price((TagDescriptorSource) tags, callback);
+	}
+
+	/**
+	 * <p>
+	 * Calculate the end-user prices of several tag selections at once, with a
+	 * single round trip to the server. This is much faster than calling
+	 * {@link #price} for each selection, for example to show the prices of a
+	 * few pre-configured bundles.
+	 * </p>
+	 * 
+	 * <p>
+	 * Errors are handled the same as in {@link #price}. If pricing any of the
+	 * selections fails, the error is reported once for the whole batch.
+	 * </p>
+	 * 
+	 * @param carts
+	 *            Descriptions of the tag selections to price
+	 * @param callback
+	 *            {@link BatchPriceCallback} to notify with the prices, in the
+	 *            same order as the selections
+	 */
+	public void priceBatch(List<TagDescriptorList> carts,
+			BatchPriceCallback callback) {
+		new PriceBatch(getApiPoster(), m_handler, m_scope, carts, callback)
+				.start();
+	}
+
+	/**
+	 * <p>
+	 * Calculate the end-user price for the tags described by
+	 * {@link TagDescriptorList}, like {@link #price}, and return a future of
+	 * the price instead of notifying a callback. Futures of several calls can
+	 * be combined with {@link ApiFuture#join(ApiFuture...)}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Cached prices are used the same as in {@link #price}, but price-feed
+	 * mode doesn't apply.
+	 * </p>
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price will be checked
+	 * @return Future of the price for the tags in USD
+	 */
+	public ApiFuture<Double> priceAsync(TagDescriptorSource tags) {
+		ApiFuture<Double> future = new ApiFuture<Double>() {
+			@Override
+			protected Double parse(JSONObject result) throws JSONException {
+				return Double.valueOf(result.getDouble("price"));
+			}
+		};
+		ApiCallback apiCallback = future;
+
+		if (m_priceCache != null) {
+			PriceCache.Key key = PriceCache.key(m_apiKey, tags);
+			Double price = m_priceCache.get(key);
+			if (price != null) {
+				try {
+					JSONObject result = new JSONObject();
+					result.put("price", price.doubleValue());
+					future.onSuccess(result);
+				} catch (JSONException e) {
+					future.onException(e);
+				}
+				return future;
+			}
+			apiCallback = m_priceCache.wrap(key, future);
+		}
+
+		future.setRequest(getApiPoster().post("price", wire(tags), null,
+				apiCallback));
+		m_scope.add(future);
+		return future;
+	}
+
+	/**
+	 * Same as {@link #priceAsync(TagDescriptorSource)}, for apps built against
+	 * earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price will be checked
+	 * @return Future of the price for the tags in USD
+	 */
+	public ApiFuture<Double> priceAsync(TagDescriptorList tags) {
+		return priceAsync((TagDescriptorSource) tags);
+	}
+
+	/**
+	 * Create a live price feed for a changing tag selection, with the default
+	 * debounce window.
+	 * 
+	 * @see PriceFeed
+	 * 
+	 * @param callback
+	 *            {@link PriceFeed.Callback} to notify of prices
+	 * @return The feed, to pass every edit of the selection to
+	 */
+	public PriceFeed newPriceFeed(PriceFeed.Callback callback) {
+		return newPriceFeed(PRICE_FEED_DELAY, callback);
+	}
+
+	/**
+	 * Create a live price feed for a changing tag selection. The feed is
+	 * stopped along with the other calls by {@link #cancelAll()}.
+	 * 
+	 * @see PriceFeed
+	 * 
+	 * @param delay
+	 *            Debounce window in milliseconds
+	 * @param callback
+	 *            {@link PriceFeed.Callback} to notify of prices
+	 * @return The feed, to pass every edit of the selection to
+	 */
+	public PriceFeed newPriceFeed(long delay, PriceFeed.Callback callback) {
+		PriceFeed feed = new PriceFeed(getApiPoster(), m_handler, m_apiKey,
+				m_priceCache, delay, callback);
+		m_scope.add(feed);
+		return feed;
+	}
+
+	/**
+	 * Cache prices returned by {@link #price} in the given cache. A single
+	 * cache may be shared by several instances.
+	 * 
+	 * @param cache
+	 *            Cache to use, or <code>null</code> to stop caching prices
+	 */
+	public void setPriceCache(PriceCache cache) {
+		m_priceCache = cache;
+	}
+
+	/**
+	 * Drop the cached price of a tag selection, if a {@link PriceCache} is
+	 * set.
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price should be dropped
+	 */
+	public void invalidatePrice(TagDescriptorSource tags) {
+		if (m_priceCache == null)
+			return;
+
+		m_priceCache.invalidate(PriceCache.key(m_apiKey, tags));
+	}
+
+	/**
+	 * Same as {@link #invalidatePrice(TagDescriptorSource)}, for apps built
+	 * against earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price should be dropped
+	 */
+	public void invalidatePrice(TagDescriptorList tags) {
+		invalidatePrice((TagDescriptorSource) tags);
+	}
+
+	/**
+	 * Send bulk entries added with {@link TagDescriptorList#add(TagDescriptor,
+	 * int)} once with their <code>quantity</code>, instead of once per tag.
+	 * Disabled by default. Only enable it against a server version known to
+	 * honour the quantity, since any other server would ship a single tag for
+	 * the whole entry.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to send quantities
+	 */
+	public void setQuantitiesEnabled(boolean enabled) {
+		m_quantitiesEnabled = enabled;
+	}
+
+	/**
+	 * <p>
+	 * Enable or disable price-feed mode for {@link #price}. In this mode, the
+	 * price is only checked once the tag selection hasn't changed for the
+	 * given delay, and every call cancels all previous calls that are still
+	 * pending or in flight. This fits well with calling {@link #price} for
+	 * every small change, like dragging a quantity slider.
+	 * </p>
+	 * 
+	 * <p>
+	 * Since the price is checked only after the delay, the
+	 * {@link TagDescriptorList} should not be modified after it's passed to
+	 * {@link #price}. Pass a new list for every change instead.
+	 * </p>
+	 * 
+	 * @param delay
+	 *            Debounce window in milliseconds, or 0 to disable price-feed
+	 *            mode
+	 */
+	public void setPriceDebounce(long delay) {
+		if (delay > 0) {
+			if (m_priceDebouncer == null) {
+				m_priceDebouncer = new PriceDebouncer(getApiPoster(),
+						m_handler, delay);
+			} else {
+				m_priceDebouncer.setDelay(delay);
+			}
+		} else if (m_priceDebouncer != null) {
+			m_priceDebouncer.flush();
+			m_priceDebouncer = null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Queue calls to {@link #buy} and {@link #test(TagDescriptorList)} made
+	 * while the device is offline, instead of failing them. Queued calls are
+	 * replayed once the device is connected, and their results are passed to
+	 * the {@link OfflineQueue.Listener} of the queue instead of being displayed
+	 * to the user.
+	 * </p>
+	 * 
+	 * <p>
+	 * A single queue should be shared by all instances.
+	 * </p>
+	 * 
+	 * @param queue
+	 *            Queue to use, or <code>null</code> to fail offline calls
+	 */
+	public void setOfflineQueue(OfflineQueue queue) {
+		m_offlineQueue = queue;
 	}
 
 	/**
@@ -143,10 +533,21 @@ public class Mktags {
 	 * @param tags
 	 *            Description of tags to buy
 	 */
-	public void buyDemo(TagDescriptorList tags) {
+	public void buyDemo(TagDescriptorSource tags) {
 		buy(tags, null, null, true);
 	}
 
+	/**
+	 * Same as {@link #buyDemo(TagDescriptorSource)}, for apps built against
+	 * earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 */
+	public void buyDemo(TagDescriptorList tags) {
+		buyDemo((TagDescriptorSource) tags);
+	}
+
 	/**
 	 * <p>
 	 * Present the end-user with a payment page to buy the tags described by
@@ -171,10 +572,27 @@ public class Mktags {
 	 *            URI of page the user will be redirected if they choose to
 	 *            cancel the transaction
 	 */
-	public void buyDemo(TagDescriptorList tags, Uri paid, Uri cancelled) {
+	public void buyDemo(TagDescriptorSource tags, Uri paid, Uri cancelled) {
 		buy(tags, paid, cancelled, true);
 	}
 
+	/**
+	 * Same as {@link #buyDemo(TagDescriptorSource, Uri, Uri)}, for apps built
+	 * against earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 * @param paid
+	 *            URI of page the user will be redirected to after completing
+	 *            the purchase
+	 * @param cancelled
+	 *            URI of page the user will be redirected if they choose to
+	 *            cancel the transaction
+	 */
+	public void buyDemo(TagDescriptorList tags, Uri paid, Uri cancelled) {
+		buyDemo((TagDescriptorSource) tags, paid, cancelled);
+	}
+
 	/**
 	 * <p>
 	 * Present the end-user with a payment page to buy the tags described by
@@ -191,10 +609,21 @@ public class Mktags {
 	 * @param tags
 	 *            Description of tags to buy
 	 */
-	public void buy(TagDescriptorList tags) {
+	public void buy(TagDescriptorSource tags) {
 		buy(tags, null, null, false);
 	}
 
+	/**
+	 * Same as {@link #buy(TagDescriptorSource)}, for apps built against
+	 * earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 */
+	public void buy(TagDescriptorList tags) {
+		buy((TagDescriptorSource) tags);
+	}
+
 	/**
 	 * <p>
 	 * Present the end-user with a payment page to buy the tags described by
@@ -219,20 +648,89 @@ public class Mktags {
 	 *            URI of page the user will be redirected if they choose to
 	 *            cancel the transaction
 	 */
-	public void buy(TagDescriptorList tags, Uri paid, Uri cancelled) {
+	public void buy(TagDescriptorSource tags, Uri paid, Uri cancelled) {
 		buy(tags, paid, cancelled, false);
 	}
 
-	private void buy(TagDescriptorList tags, Uri paid, Uri cancelled,
+	/**
+	 * Same as {@link #buy(TagDescriptorSource, Uri, Uri)}, for apps built
+	 * against earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 * @param paid
+	 *            URI of page the user will be redirected to after completing
+	 *            the purchase
+	 * @param cancelled
+	 *            URI of page the user will be redirected if they choose to
+	 *            cancel the transaction
+	 */
+	public void buy(TagDescriptorList tags, Uri paid, Uri cancelled) {
+		buy((TagDescriptorSource) tags, paid, cancelled);
+	}
+
+	private void buy(TagDescriptorSource tags, Uri paid, Uri cancelled,
 			boolean demo) {
-		Map<String, Object> params = new HashMap<String, Object>();
-		if (paid != null)
-			params.put("paid_url", paid.toString());
-		if (cancelled != null)
-			params.put("cancelled_url", cancelled.toString());
-		params.put("demo", Boolean.valueOf(demo));
+		Map<String, Object> params = buyParams(paid, cancelled, demo);
+		if (enqueueIfOffline("buy", tags, params))
+			return;
+		m_scope.add(getApiPoster().post("buy", wire(tags), params,
+				new BuyCallback(m_context)));
+	}
 
-		m_apiPoster.post("buy", tags, params, new BuyCallback(m_context));
+	/**
+	 * <p>
+	 * Get a payment page to buy the tags described by
+	 * {@link TagDescriptorList}, and return a future of its URL instead of
+	 * opening it. Opening the page is up to the caller.
+	 * </p>
+	 * 
+	 * <p>
+	 * Errors are only logged. Unlike {@link #buy}, calls made while offline
+	 * fail instead of being queued.
+	 * </p>
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 * @param paid
+	 *            URI of page the user will be redirected to after completing
+	 *            the purchase, or <code>null</code>
+	 * @param cancelled
+	 *            URI of page the user will be redirected if they choose to
+	 *            cancel the transaction, or <code>null</code>
+	 * @return Future of the URL of the payment page
+	 */
+	public ApiFuture<String> buyAsync(TagDescriptorSource tags, Uri paid,
+			Uri cancelled) {
+		ApiFuture<String> future = new ApiFuture<String>() {
+			@Override
+			protected String parse(JSONObject result) throws JSONException {
+				return result.getString("url");
+			}
+		};
+		future.setRequest(getApiPoster().post("buy", wire(tags),
+				buyParams(paid, cancelled, false), future));
+		m_scope.add(future);
+		return future;
+	}
+
+	/**
+	 * Same as {@link #buyAsync(TagDescriptorSource, Uri, Uri)}, for apps built
+	 * against earlier versions of the SDK.
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 * @param paid
+	 *            URI of page the user will be redirected to after completing
+	 *            the purchase, or <code>null</code>
+	 * @param cancelled
+	 *            URI of page the user will be redirected if they choose to
+	 *            cancel the transaction, or <code>null</code>
+	 * @return Future of the URL of the payment page
+	 */
+	public ApiFuture<String> buyAsync(TagDescriptorList tags, Uri paid,
+			Uri cancelled) {
+		return buyAsync((TagDescriptorSource) tags, paid, cancelled);
 	}
 
 	/**
@@ -262,8 +760,9 @@ public class Mktags {
 	 *            Description of tags to buy
 	 */
 	public void test(TagDescriptorList tags) {
-		TestDialogCallback cb = new TestDialogCallback(m_context, tags);
-		m_apiPoster.post("test", tags, null, cb);
+		if (enqueueIfOffline("test", tags, null))
+			return;
+		test(tags, new TestDialogCallback(m_context, tags));
 	}
 
 	/**
@@ -286,7 +785,84 @@ public class Mktags {
 	 *            {@link TestCallback} to notify
 	 */
 	public void test(TagDescriptorList tags, TestCallback callback) {
-		m_apiPoster.post("test", tags, null, callback);
+		// the API returns a tag for every object sent
+		boolean quantities = m_quantitiesEnabled;
+		callback.setQuantities(quantities ? tags.getQuantities() : null);
+		m_scope.add(getApiPoster().post("test",
+				quantities ? tags.withQuantities() : tags, null, callback));
+	}
+
+	/**
+	 * <p>
+	 * For development purposes only! Convert the tags described by
+	 * {@link TagDescriptorList}, like
+	 * {@link #test(TagDescriptorList, TestCallback)}, and return a future of
+	 * the {@link NdefMessage} objects instead of notifying a callback.
+	 * </p>
+	 * 
+	 * <p>
+	 * Errors are only logged.
+	 * </p>
+	 * 
+	 * @param tags
+	 *            Description of tags to buy
+	 * @return Future of the tags converted to {@link NdefMessage}
+	 */
+	public ApiFuture<NdefMessage[]> testAsync(TagDescriptorList tags) {
+		boolean sendQuantities = m_quantitiesEnabled;
+		final int[] quantities = sendQuantities ? tags.getQuantities() : null;
+		ApiFuture<NdefMessage[]> future = new ApiFuture<NdefMessage[]>() {
+			@Override
+			protected NdefMessage[] parse(JSONObject result) throws Exception {
+				return TestCallback.expand(TestCallback.parseTags(result),
+						quantities);
+			}
+		};
+		future.setRequest(getApiPoster().post("test",
+				sendQuantities ? tags.withQuantities() : tags, null, future));
+		m_scope.add(future);
+		return future;
+	}
+
+	private static Map<String, Object> buyParams(Uri paid, Uri cancelled,
+			boolean demo) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		if (paid != null)
+			params.put("paid_url", paid.toString());
+		if (cancelled != null)
+			params.put("cancelled_url", cancelled.toString());
+		params.put("demo", Boolean.valueOf(demo));
+		return params;
+	}
+
+	private synchronized ApiPoster getApiPoster() {
+		if (m_apiPoster == null) {
+			if (m_transport == null)
+				m_apiPoster = MktagsCore.getApiPoster(m_context, m_apiKey);
+			else
+				m_apiPoster = MktagsCore.newApiPoster(m_context, m_apiKey,
+						m_transport);
+		}
+		return m_apiPoster;
+	}
+
+	/**
+	 * @return The tags as they should be sent, with quantities if enabled
+	 */
+	private TagDescriptorSource wire(TagDescriptorSource tags) {
+		return m_quantitiesEnabled ? tags.withQuantities() : tags;
+	}
+
+	private boolean enqueueIfOffline(String api, TagDescriptorSource tags,
+			Map<String, Object> params) {
+		OfflineQueue queue = m_offlineQueue;
+		if (queue == null || queue.isOnline())
+			return false;
+
+		if (Log.isLoggable(Consts.TAG, Log.INFO))
+			Log.i(Consts.TAG, "Offline, queueing " + api);
+		queue.enqueue(api, tags, params);
+		return true;
 	}
 
 }
@@ -0,0 +1,67 @@
+package com.mktags.android;
+
+import android.Manifest.permission;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.ApiTransport;
+
+/**
+ * Internal registry of the {@link ApiPoster} instances behind {@link Mktags}.
+ * All instances using the default transport with the same API key share the
+ * poster of {@link ApiPoster#getShared(Context, String)}, along with its
+ * identical-call sharing, circuit breakers and scheduler. Posters are only
+ * created when the first call is made, so creating a {@link Mktags} in
+ * <code>onCreate()</code> is cheap.
+ */
+class MktagsCore {
+
+	private static boolean s_permissionChecked;
+
+	private MktagsCore() {
+	}
+
+	/**
+	 * @param context
+	 *            Any context of the app
+	 * @param apiKey
+	 *            The API key
+	 * @return The poster shared by the process for the API key
+	 */
+	public static synchronized ApiPoster getApiPoster(Context context,
+			String apiKey) {
+		checkPermission(context);
+		return ApiPoster.getShared(context, apiKey);
+	}
+
+	/**
+	 * @param context
+	 *            Any context of the app
+	 * @param apiKey
+	 *            The API key
+	 * @param transport
+	 *            Transport used to send requests
+	 * @return A new poster, not shared with other instances
+	 */
+	public static synchronized ApiPoster newApiPoster(Context context,
+			String apiKey, ApiTransport transport) {
+		checkPermission(context);
+		return new ApiPoster(context.getApplicationContext(), apiKey,
+				transport);
+	}
+
+	private static void checkPermission(Context context) {
+		if (s_permissionChecked)
+			return;
+
+		PackageManager pm = context.getPackageManager();
+		String pkg = context.getPackageName();
+		int perm = pm.checkPermission(permission.INTERNET, pkg);
+		if (perm != PackageManager.PERMISSION_GRANTED)
+			Log.wtf(Consts.TAG, "Missing required permission INTERNET");
+		s_permissionChecked = true;
+	}
+
+}
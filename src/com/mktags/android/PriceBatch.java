@@ -0,0 +1,265 @@
+package com.mktags.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mktags.android.api.AbstractApiCallback;
+import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.ApiRequest;
+import com.mktags.android.api.RequestScope;
+import com.mktags.android.json.ValueWriter;
+import com.mktags.android.json.JsonWritable;
+import com.mktags.android.tags.TagDescriptorList;
+
+/**
+ * <p>
+ * Internal helper used by {@link Mktags#priceBatch}. All the tag selections
+ * are priced with a single call of the <code>price_batch</code> API.
+ * </p>
+ * 
+ * <p>
+ * If the server doesn't support that API, every selection is priced with its
+ * own <code>price</code> call instead. The calls are made at once and share the
+ * kept-alive connections of the transport, and their prices are collected into
+ * a single result, so the callback can't tell the difference. Once the API is
+ * found missing, the batches of the next {@link #UNSUPPORTED_TIMEOUT}
+ * milliseconds skip straight to separate calls, after which the API is tried
+ * again, in case the server was upgraded.
+ * </p>
+ */
+class PriceBatch {
+
+	static final long UNSUPPORTED_TIMEOUT = 10 * 60 * 1000;
+
+	private static volatile long s_unsupportedUntil;
+
+	private ApiPoster m_apiPoster;
+	private Handler m_handler;
+	private RequestScope m_scope;
+	private List<TagDescriptorList> m_carts;
+	private BatchPriceCallback m_callback;
+
+	// state of separate calls, only accessed on the handler's thread
+	private double[] m_prices;
+	private int m_remaining;
+	private List<ApiRequest> m_requests;
+	private boolean m_failed;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param apiPoster
+	 *            Poster used to make the actual calls
+	 * @param handler
+	 *            Handler of the thread callbacks are called on
+	 * @param scope
+	 *            Scope the calls are added to
+	 * @param carts
+	 *            Descriptions of the tag selections to price
+	 * @param callback
+	 *            Callback to notify once with all the prices
+	 */
+	public PriceBatch(ApiPoster apiPoster, Handler handler,
+			RequestScope scope, List<TagDescriptorList> carts,
+			BatchPriceCallback callback) {
+		m_apiPoster = apiPoster;
+		m_handler = handler;
+		m_scope = scope;
+		m_callback = callback;
+
+		// snapshot the selections so they can be encoded in the background
+		m_carts = new ArrayList<TagDescriptorList>(carts.size());
+		for (TagDescriptorList cart : carts) {
+			m_carts.add(new TagDescriptorList(cart));
+		}
+	}
+
+	/**
+	 * Make the call.
+	 */
+	public void start() {
+		if (m_carts.isEmpty()) {
+			m_prices = new double[0];
+			m_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					report();
+				}
+			});
+		} else if (SystemClock.elapsedRealtime() < s_unsupportedUntil) {
+			startSeparate();
+		} else {
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("carts", new Carts(m_carts));
+			m_scope.add(m_apiPoster.post("price_batch", params,
+					new BatchCallback()));
+		}
+	}
+
+	private void startSeparate() {
+		m_prices = new double[m_carts.size()];
+		m_remaining = m_prices.length;
+		m_requests = new ArrayList<ApiRequest>(m_prices.length);
+		for (int i = 0; i < m_prices.length; i++) {
+			m_requests.add(m_scope.add(m_apiPoster.post("price",
+					m_carts.get(i), null, new CartCallback(i))));
+		}
+	}
+
+	private void report() {
+		try {
+			JSONArray prices = new JSONArray();
+			for (double price : m_prices)
+				prices.put(price);
+			JSONObject result = new JSONObject();
+			result.put("prices", prices);
+			m_callback.onSuccess(result);
+		} catch (JSONException e) {
+			m_callback.onException(e);
+		}
+	}
+
+	/**
+	 * Stop all other calls, so only the first error is reported.
+	 * 
+	 * @return <code>true</code> if this is the first error
+	 */
+	private boolean fail() {
+		if (m_failed)
+			return false;
+
+		m_failed = true;
+		for (ApiRequest request : m_requests)
+			request.cancel();
+		return true;
+	}
+
+	private static boolean isUnsupported(Throwable e) {
+		if (!(e instanceof HttpResponseException))
+			return false;
+
+		int status = ((HttpResponseException) e).getStatusCode();
+		return status == HttpStatus.SC_NOT_FOUND
+				|| status == HttpStatus.SC_NOT_IMPLEMENTED;
+	}
+
+	/**
+	 * Writes the tag selections as an array of <code>tags</code> arrays.
+	 */
+	private static class Carts implements JsonWritable {
+
+		private List<TagDescriptorList> m_carts;
+
+		public Carts(List<TagDescriptorList> carts) {
+			m_carts = carts;
+		}
+
+		@Override
+		public void writeJson(ValueWriter writer) throws IOException {
+			writer.beginArray();
+			for (TagDescriptorList cart : m_carts)
+				cart.writeJson(writer);
+			writer.endArray();
+		}
+
+	}
+
+	private class BatchCallback extends AbstractApiCallback {
+
+		@Override
+		public void onSuccess(JSONObject result) throws JSONException {
+			// prices can't be matched to the carts, so none of them is priced
+			int count = result.getJSONArray("prices").length();
+			if (count != m_carts.size())
+				throw new JSONException("Expected " + m_carts.size()
+						+ " prices but got " + count);
+			m_callback.onSuccess(result);
+		}
+
+		@Override
+		public void onUserError(String code, String message) {
+			m_callback.onUserError(code, message);
+		}
+
+		@Override
+		public void onDeveloperError(String code, String message) {
+			m_callback.onDeveloperError(code, message);
+		}
+
+		@Override
+		public void onServerError(String code, String message) {
+			m_callback.onServerError(code, message);
+		}
+
+		@Override
+		public void onException(Throwable e) {
+			if (isUnsupported(e)) {
+				Log.i(Consts.TAG, "price_batch unavailable, pricing separately");
+				s_unsupportedUntil = SystemClock.elapsedRealtime()
+						+ UNSUPPORTED_TIMEOUT;
+				startSeparate();
+			} else {
+				m_callback.onException(e);
+			}
+		}
+
+	}
+
+	private class CartCallback extends AbstractApiCallback {
+
+		private int m_index;
+
+		public CartCallback(int index) {
+			m_index = index;
+		}
+
+		@Override
+		public void onSuccess(JSONObject result) throws JSONException {
+			if (m_failed)
+				return;
+
+			m_prices[m_index] = result.getDouble("price");
+			if (--m_remaining == 0)
+				report();
+		}
+
+		@Override
+		public void onUserError(String code, String message) {
+			if (fail())
+				m_callback.onUserError(code, message);
+		}
+
+		@Override
+		public void onDeveloperError(String code, String message) {
+			if (fail())
+				m_callback.onDeveloperError(code, message);
+		}
+
+		@Override
+		public void onServerError(String code, String message) {
+			if (fail())
+				m_callback.onServerError(code, message);
+		}
+
+		@Override
+		public void onException(Throwable e) {
+			if (fail())
+				m_callback.onException(e);
+		}
+
+	}
+
+}
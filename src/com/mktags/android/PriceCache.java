@@ -0,0 +1,351 @@
+package com.mktags.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+import com.mktags.android.api.ApiCallback;
+import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.CancellableApiCallback;
+import com.mktags.android.tags.SmartPosterSeries;
+import com.mktags.android.tags.TagDescriptor;
+import com.mktags.android.tags.TagDescriptorList;
+import com.mktags.android.tags.TagDescriptorSource;
+
+/**
+ * <p>
+ * In-memory LRU cache of prices returned by {@link Mktags#price}. Prices are
+ * keyed by the API key and the descriptors of the {@link TagDescriptorList},
+ * so toggling back to a previously priced selection doesn't have to wait for
+ * the network again.
+ * </p>
+ * 
+ * <p>
+ * Expired prices are kept until they are replaced or dropped to make room.
+ * While the circuit breaker of the <code>price</code> API is open, the last
+ * known price of a selection is reported even if it expired, instead of an
+ * error.
+ * </p>
+ * 
+ * <p>
+ * A cache can be shared by several {@link Mktags} instances, even if they use
+ * different API keys. All methods are thread-safe.
+ * </p>
+ * 
+ * @see Mktags#setPriceCache(PriceCache)
+ */
+public class PriceCache {
+
+	private int m_maxEntries;
+	private long m_ttl;
+	private LinkedHashMap<Key, CachedPrice> m_entries;
+	private int m_hits;
+	private int m_misses;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxEntries
+	 *            Maximal number of prices to keep. The least recently used
+	 *            price is dropped when the cache is full.
+	 * @param ttl
+	 *            Time in milliseconds a price is considered valid
+	 */
+	public PriceCache(int maxEntries, long ttl) {
+		m_maxEntries = maxEntries;
+		m_ttl = ttl;
+		m_entries = new LinkedHashMap<Key, CachedPrice>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CachedPrice> eldest) {
+				return size() > m_maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return Number of lookups that found a valid price
+	 */
+	public synchronized int getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * @return Number of lookups that didn't find a valid price
+	 */
+	public synchronized int getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * @return Number of prices currently in the cache, including expired ones
+	 */
+	public synchronized int size() {
+		return m_entries.size();
+	}
+
+	/**
+	 * Drop all prices from the cache.
+	 */
+	public synchronized void clear() {
+		m_entries.clear();
+	}
+
+	/**
+	 * Calculate the cache key of a price call. Lists and other sources are
+	 * keyed by their descriptors, compared with
+	 * {@link TagDescriptor#equals(Object)}, and series by their template, so
+	 * no descriptor is ever encoded and the key is cheap to build on the UI
+	 * thread.
+	 * 
+	 * @param apiKey
+	 *            API key used for the call
+	 * @param tags
+	 *            Description of tags for which the price is checked
+	 * @return Key identifying the call
+	 */
+	public static Key key(String apiKey, TagDescriptorSource tags) {
+		if (tags instanceof SmartPosterSeries) {
+			// the tags are generated from the template, so it identifies them
+			SmartPosterSeries series = (SmartPosterSeries) tags;
+			return new Key(apiKey, new Object[] { SmartPosterSeries.class,
+					series.getLabelPattern(), series.getTitlePattern(),
+					series.getUriPattern(), Long.valueOf(series.getFirst()),
+					Long.valueOf(series.getLast()) });
+		}
+
+		// runs of identical tags are keyed the same whether or not they were
+		// added as a single entry
+		List<Object> parts = new ArrayList<Object>();
+		TagDescriptor last = null;
+		int quantity = 0;
+		if (tags instanceof TagDescriptorList) {
+			TagDescriptorList list = (TagDescriptorList) tags;
+			int count = list.getEntryCount();
+			for (int i = 0; i < count; i++) {
+				TagDescriptor tag = list.getEntryTag(i);
+				if (!tag.equals(last)) {
+					addRun(parts, last, quantity);
+					last = tag;
+					quantity = 0;
+				}
+				quantity += list.getQuantity(i);
+			}
+		} else {
+			for (TagDescriptor tag : tags) {
+				if (!tag.equals(last)) {
+					addRun(parts, last, quantity);
+					last = tag;
+					quantity = 0;
+				}
+				quantity++;
+			}
+		}
+		addRun(parts, last, quantity);
+		return new Key(apiKey, parts.toArray());
+	}
+
+	/**
+	 * Look up a price.
+	 * 
+	 * @param key
+	 *            Cache key, as returned by {@link #key}
+	 * @return The cached price or <code>null</code> if there is no valid price
+	 */
+	public synchronized Double get(Key key) {
+		CachedPrice entry = m_entries.get(key);
+		if (entry == null || entry.expires <= SystemClock.elapsedRealtime()) {
+			m_misses++;
+			return null;
+		}
+
+		m_hits++;
+		return entry.price;
+	}
+
+	/**
+	 * Look up a price, even if it expired. Lookups of stale prices are not
+	 * counted as hits or misses.
+	 * 
+	 * @param key
+	 *            Cache key, as returned by {@link #key}
+	 * @return The last cached price or <code>null</code> if there is none
+	 */
+	public synchronized Double getStale(Key key) {
+		CachedPrice entry = m_entries.get(key);
+		return entry != null ? entry.price : null;
+	}
+
+	/**
+	 * Store a price.
+	 * 
+	 * @param key
+	 *            Cache key, as returned by {@link #key}
+	 * @param price
+	 *            The price for the tags in USD
+	 */
+	public synchronized void put(Key key, double price) {
+		long expires = SystemClock.elapsedRealtime() + m_ttl;
+		m_entries.put(key, new CachedPrice(Double.valueOf(price), expires));
+	}
+
+	/**
+	 * Drop a single price from the cache.
+	 * 
+	 * @param key
+	 *            Cache key, as returned by {@link #key}
+	 */
+	public synchronized void invalidate(Key key) {
+		m_entries.remove(key);
+	}
+
+	/**
+	 * Wrap a callback so the price it receives is also stored in the cache.
+	 * Wrappers of the same callback are equal, whatever their key, so a newer
+	 * call of the callback is recognized as such.
+	 * 
+	 * @param key
+	 *            Cache key, as returned by {@link #key}
+	 * @param callback
+	 *            Callback to wrap
+	 * @return Callback that stores the price and passes everything on
+	 */
+	ApiCallback wrap(Key key, ApiCallback callback) {
+		return new CachingCallback(key, callback);
+	}
+
+	private static void addRun(List<Object> parts, TagDescriptor tag,
+			int quantity) {
+		if (tag != null) {
+			parts.add(tag);
+			parts.add(Integer.valueOf(quantity));
+		}
+	}
+
+	/**
+	 * Cache key of a price call, as returned by {@link PriceCache#key}. It
+	 * holds the descriptors of the tags, which never change, so it stays
+	 * valid when the tag selection it was made from is edited.
+	 */
+	public static final class Key {
+
+		private final String m_apiKey;
+		private final Object[] m_parts;
+		private final int m_hash;
+
+		private Key(String apiKey, Object[] parts) {
+			m_apiKey = apiKey;
+			m_parts = parts;
+			m_hash = 31 * apiKey.hashCode() + Arrays.hashCode(parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return m_hash == other.m_hash && m_apiKey.equals(other.m_apiKey)
+					&& Arrays.equals(m_parts, other.m_parts);
+		}
+
+	}
+
+	private static class CachedPrice {
+		public final Double price;
+		public final long expires;
+
+		public CachedPrice(Double price, long expires) {
+			this.price = price;
+			this.expires = expires;
+		}
+	}
+
+	private class CachingCallback implements CancellableApiCallback {
+
+		private Key m_key;
+		private ApiCallback m_callback;
+
+		public CachingCallback(Key key, ApiCallback callback) {
+			m_key = key;
+			m_callback = callback;
+		}
+
+		@Override
+		public void onSuccess(JSONObject result) throws JSONException {
+			put(m_key, result.getDouble("price"));
+			m_callback.onSuccess(result);
+		}
+
+		@Override
+		public void onUserError(String code, String message) {
+			m_callback.onUserError(code, message);
+		}
+
+		@Override
+		public void onDeveloperError(String code, String message) {
+			m_callback.onDeveloperError(code, message);
+		}
+
+		@Override
+		public void onServerError(String code, String message) {
+			Double stale = null;
+			if (ApiPoster.CIRCUIT_OPEN.equals(code))
+				stale = getStale(m_key);
+			if (stale == null) {
+				m_callback.onServerError(code, message);
+				return;
+			}
+
+			try {
+				JSONObject result = new JSONObject();
+				result.put("price", stale.doubleValue());
+				result.put("stale", true);
+				m_callback.onSuccess(result);
+			} catch (JSONException e) {
+				m_callback.onException(e);
+			}
+		}
+
+		@Override
+		public void onException(Throwable e) {
+			m_callback.onException(e);
+		}
+
+		@Override
+		public void onCancelled() {
+			if (m_callback instanceof CancellableApiCallback)
+				((CancellableApiCallback) m_callback).onCancelled();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CachingCallback))
+				return false;
+			return ((CachingCallback) o).m_callback == m_callback;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(m_callback);
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.mktags.android;
+
+import android.os.Handler;
+
+import com.mktags.android.api.ApiCallback;
+import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.ApiRequest;
+import com.mktags.android.api.CancellableApiCallback;
+import com.mktags.android.tags.TagDescriptorSource;
+
+/**
+ * Internal helper used by {@link Mktags#price} in price-feed mode. Calls are
+ * delayed until the tag selection settles down for a while, and a newer call
+ * cancels any older call that is still in flight. This way only the price of
+ * the latest selection ever reaches a {@link PriceCallback}.
+ */
+class PriceDebouncer implements Runnable {
+
+	private ApiPoster m_apiPoster;
+	private Handler m_handler;
+	private long m_delay;
+
+	private TagDescriptorSource m_pendingTags;
+	private ApiCallback m_pendingCallback;
+	private ApiRequest m_inFlight;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param apiPoster
+	 *            Poster used to make the actual calls
+	 * @param handler
+	 *            Handler of the thread <code>price</code> is called on
+	 * @param delay
+	 *            Debounce window in milliseconds
+	 */
+	public PriceDebouncer(ApiPoster apiPoster, Handler handler, long delay) {
+		m_apiPoster = apiPoster;
+		m_handler = handler;
+		m_delay = delay;
+	}
+
+	/**
+	 * @param delay
+	 *            Debounce window in milliseconds
+	 */
+	public void setDelay(long delay) {
+		m_delay = delay;
+	}
+
+	/**
+	 * Schedule a price call, superseding any previous one.
+	 * 
+	 * @param tags
+	 *            Description of tags for which the price will be checked
+	 * @param callback
+	 *            Callback to notify, usually a {@link PriceCallback}
+	 */
+	public synchronized void price(TagDescriptorSource tags,
+			ApiCallback callback) {
+		cancelInFlight();
+		// a wrapper of the pending callback, with a new cache key, is equal
+		if (!callback.equals(m_pendingCallback))
+			dropPending();
+		m_pendingTags = tags;
+		m_pendingCallback = callback;
+		m_handler.removeCallbacks(this);
+		m_handler.postDelayed(this, m_delay);
+	}
+
+	/**
+	 * Make the pending call, if any, right away.
+	 */
+	public synchronized void flush() {
+		m_handler.removeCallbacks(this);
+		run();
+	}
+
+	/**
+	 * Drop the pending call, if any, and cancel the call in flight.
+	 */
+	public synchronized void cancel() {
+		m_handler.removeCallbacks(this);
+		dropPending();
+		cancelInFlight();
+	}
+
+	@Override
+	public synchronized void run() {
+		if (m_pendingTags == null)
+			return;
+
+		m_inFlight = m_apiPoster.post("price", m_pendingTags, null,
+				m_pendingCallback);
+		m_pendingTags = null;
+		m_pendingCallback = null;
+	}
+
+	private void dropPending() {
+		ApiCallback callback = m_pendingCallback;
+		m_pendingTags = null;
+		m_pendingCallback = null;
+		if (callback instanceof CancellableApiCallback)
+			((CancellableApiCallback) callback).onCancelled();
+	}
+
+	private void cancelInFlight() {
+		if (m_inFlight != null) {
+			m_inFlight.cancel();
+			m_inFlight = null;
+		}
+	}
+
+}
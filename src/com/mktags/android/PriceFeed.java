@@ -0,0 +1,239 @@
+package com.mktags.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+
+import com.mktags.android.api.AbstractApiCallback;
+import com.mktags.android.api.ApiCallback;
+import com.mktags.android.api.ApiPoster;
+import com.mktags.android.api.ApiRequest;
+import com.mktags.android.tags.TagDescriptorList;
+
+/**
+ * <p>
+ * Live price of a changing tag selection. Every edit of the selection is
+ * passed to {@link #update(TagDescriptorList)}, and the feed reports the
+ * price of the latest selection only:
+ * </p>
+ * <ul>
+ * <li>A selection identical to the last one is ignored.</li>
+ * <li>Edits made within the debounce window are merged into a single call.</li>
+ * <li>A newer selection cancels the call of an older one still in flight, so
+ * at most one call is in flight at any time.</li>
+ * <li>While a new price is on its way, the previous price is reported as
+ * stale, so the display can mark it as such.</li>
+ * </ul>
+ * 
+ * <p>
+ * Prices are looked up in the {@link PriceCache} the {@link Mktags} instance
+ * had when the feed was created. All methods must be called on the main
+ * thread, and all the callback methods are called there too.
+ * </p>
+ * 
+ * @see Mktags#newPriceFeed(Callback)
+ */
+public class PriceFeed implements ApiRequest {
+
+	/**
+	 * Callback of a {@link PriceFeed}. {@link #onResult(double)} is called
+	 * with every fresh price, and errors are handled as in
+	 * {@link PriceCallback}.
+	 */
+	public static abstract class Callback extends PriceCallback {
+
+		/**
+		 * Called when the last reported price no longer matches the
+		 * selection, either because a new price is on its way or because the
+		 * service is unavailable and the cached price expired. Does nothing by
+		 * default.
+		 * 
+		 * @param price
+		 *            The last known price in USD
+		 */
+		protected void onStale(double price) {
+		}
+
+	}
+
+	private String m_apiKey;
+	private PriceCache m_priceCache;
+	private PriceDebouncer m_debouncer;
+	private Callback m_callback;
+
+	private PriceCache.Key m_lastKey;
+	private double m_lastPrice = Double.NaN;
+	private boolean m_pending;
+	private boolean m_closed;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param apiPoster
+	 *            Poster used to make the actual calls
+	 * @param handler
+	 *            Handler of the main thread
+	 * @param apiKey
+	 *            API key the prices are cached under
+	 * @param priceCache
+	 *            Cache to look prices up in, or <code>null</code>
+	 * @param delay
+	 *            Debounce window in milliseconds
+	 * @param callback
+	 *            Callback to notify of prices
+	 */
+	PriceFeed(ApiPoster apiPoster, Handler handler, String apiKey,
+			PriceCache priceCache, long delay, Callback callback) {
+		m_apiKey = apiKey;
+		m_priceCache = priceCache;
+		m_debouncer = new PriceDebouncer(apiPoster, handler, delay);
+		m_callback = callback;
+	}
+
+	/**
+	 * Pass the current tag selection. The list is copied, so it may be
+	 * modified afterwards.
+	 * 
+	 * @param tags
+	 *            Description of the selected tags
+	 */
+	public void update(TagDescriptorList tags) {
+		if (m_closed)
+			return;
+
+		PriceCache.Key key = PriceCache.key(m_apiKey, tags);
+		if (key.equals(m_lastKey))
+			return;
+		m_lastKey = key;
+
+		ApiCallback callback = new FeedCallback(key);
+		if (m_priceCache != null) {
+			Double price = m_priceCache.get(key);
+			if (price != null) {
+				m_debouncer.cancel();
+				m_pending = false;
+				report(key, price.doubleValue());
+				return;
+			}
+			callback = m_priceCache.wrap(key, callback);
+		}
+
+		if (!m_pending && !Double.isNaN(m_lastPrice))
+			m_callback.onStale(m_lastPrice);
+		m_pending = true;
+
+		m_debouncer.price(new TagDescriptorList(tags), callback);
+	}
+
+	/**
+	 * @return <code>true</code> if a new price is on its way
+	 */
+	public boolean isPending() {
+		return m_pending;
+	}
+
+	/**
+	 * @return The last price reported, or <code>NaN</code> if none was yet
+	 */
+	public double getLastPrice() {
+		return m_lastPrice;
+	}
+
+	/**
+	 * Stop the feed. The pending call and the call in flight are cancelled,
+	 * and later updates are ignored.
+	 */
+	@Override
+	public void cancel() {
+		m_closed = true;
+		m_pending = false;
+		m_debouncer.cancel();
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return m_closed;
+	}
+
+	private void report(PriceCache.Key key, double price) {
+		if (m_closed || !key.equals(m_lastKey))
+			return;
+
+		m_lastPrice = price;
+		m_callback.onResult(price);
+	}
+
+	/**
+	 * Passes the outcome of a call on, unless a newer selection was passed in
+	 * the meantime.
+	 */
+	private class FeedCallback extends AbstractApiCallback {
+
+		private PriceCache.Key m_key;
+
+		public FeedCallback(PriceCache.Key key) {
+			m_key = key;
+		}
+
+		private boolean isLatest() {
+			if (m_closed || !m_key.equals(m_lastKey))
+				return false;
+
+			m_pending = false;
+			return true;
+		}
+
+		/**
+		 * Like {@link #isLatest()}, but also lets the same selection be
+		 * passed again to retry. Used for stale prices as well, so the next
+		 * update fetches a fresh one.
+		 */
+		private boolean isLatestFailure() {
+			if (!isLatest())
+				return false;
+
+			m_lastKey = null;
+			return true;
+		}
+
+		@Override
+		public void onSuccess(JSONObject result) throws JSONException {
+			double price = result.getDouble("price");
+			boolean stale = result.optBoolean("stale");
+			if (stale ? !isLatestFailure() : !isLatest())
+				return;
+
+			if (stale)
+				m_callback.onStale(price);
+			else
+				report(m_key, price);
+		}
+
+		@Override
+		public void onUserError(String code, String message) {
+			if (isLatestFailure())
+				m_callback.onUserError(code, message);
+		}
+
+		@Override
+		public void onDeveloperError(String code, String message) {
+			if (isLatestFailure())
+				m_callback.onDeveloperError(code, message);
+		}
+
+		@Override
+		public void onServerError(String code, String message) {
+			if (isLatestFailure())
+				m_callback.onServerError(code, message);
+		}
+
+		@Override
+		public void onException(Throwable e) {
+			if (isLatestFailure())
+				m_callback.onException(e);
+		}
+
+	}
+
+}
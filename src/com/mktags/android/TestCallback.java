@@ -1,5 +1,9 @@
 package com.mktags.android;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -10,6 +14,10 @@ import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.util.Base64;
 
+import com.mktags.android.api.StreamingApiCallback;
+import com.mktags.android.json.ValueReader;
+import com.mktags.android.tags.TagDescriptorList;
+
 /**
  * <p>
  * Abstract <code>test</code> API callback that extracts the information from
@@ -18,11 +26,20 @@ import android.util.Base64;
  * </p>
  * 
  * <p>
+ * Tags are decoded one by one on a background thread while the response is
+ * being read, so even a <code>test</code> call with many tags doesn't block
+ * the UI thread or keep the whole response in memory.
+ * </p>
+ * 
+ * <p>
  * All errors are handled by logging and displaying them. To get more error
  * handling control, override any of the <code>onX</code> methods.
  * </p>
  */
-public abstract class TestCallback extends VerboseApiCallback {
+public abstract class TestCallback extends VerboseApiCallback implements
+		StreamingApiCallback<NdefMessage[]> {
+
+	private volatile int[] m_quantities;
 
 	/**
 	 * Constructor.
@@ -45,21 +62,120 @@ public abstract class TestCallback extends VerboseApiCallback {
 	 */
 	protected abstract void onResult(NdefMessage[] tags);
 
+	/**
+	 * Set the quantities of the entries of the {@link TagDescriptorList} the
+	 * call was made with, if they were sent. The API then returns a single tag
+	 * for every entry, which is repeated as many times as its quantity, so
+	 * {@link #onResult(NdefMessage[])} gets one tag for every tag ordered.
+	 * Called by {@link Mktags} before making the call.
+	 * 
+	 * @param quantities
+	 *            Quantities as returned by
+	 *            {@link TagDescriptorList#getQuantities()}, or
+	 *            <code>null</code> if quantities weren't sent
+	 */
+	protected void setQuantities(int[] quantities) {
+		m_quantities = quantities;
+	}
+
 	@Override
 	public void onSuccess(JSONObject result) throws JSONException {
 		super.onSuccess(result);
 		try {
-			JSONArray tagsJson = result.getJSONArray("tags");
-			NdefMessage[] tags = new NdefMessage[tagsJson.length()];
-			for (int i = 0; i < tagsJson.length(); i++) {
-				String tagBase64 = tagsJson.getString(i);
-				byte[] tagData = Base64.decode(tagBase64, Base64.DEFAULT);
-				tags[i] = new NdefMessage(tagData);
-			}
-			onResult(tags);
+			onResult(expand(parseTags(result), m_quantities));
 		} catch (FormatException e) {
 			onException(e);
 		}
 	}
 
+	/**
+	 * Convert a <code>test</code> API result that was already parsed.
+	 * 
+	 * @param result
+	 *            The result, as returned by the API
+	 * @return An array of all the tags converted to {@link NdefMessage}
+	 * @throws JSONException
+	 *             If the result has no tags
+	 * @throws FormatException
+	 *             If any of the tags is not a valid NDEF message
+	 */
+	static NdefMessage[] parseTags(JSONObject result) throws JSONException,
+			FormatException {
+		JSONArray tagsJson = result.getJSONArray("tags");
+		NdefMessage[] tags = new NdefMessage[tagsJson.length()];
+		for (int i = 0; i < tagsJson.length(); i++) {
+			String tagBase64 = tagsJson.getString(i);
+			byte[] tagData = Base64.decode(tagBase64, Base64.DEFAULT);
+			tags[i] = new NdefMessage(tagData);
+		}
+		return tags;
+	}
+
+	/**
+	 * Repeat the tag of every entry as many times as its quantity.
+	 * 
+	 * @param tags
+	 *            A tag for every entry
+	 * @param quantities
+	 *            Quantity of every entry, or <code>null</code> if quantities
+	 *            weren't sent and the API returned a tag for every tag
+	 * @return A tag for every tag ordered
+	 * @throws JSONException
+	 *             If there isn't a tag for every entry
+	 */
+	static NdefMessage[] expand(NdefMessage[] tags, int[] quantities)
+			throws JSONException {
+		if (quantities == null)
+			return tags;
+		if (quantities.length != tags.length)
+			throw new JSONException("Expected " + quantities.length
+					+ " tags but got " + tags.length);
+
+		int total = 0;
+		for (int quantity : quantities)
+			total += quantity;
+
+		NdefMessage[] expanded = new NdefMessage[total];
+		int j = 0;
+		for (int i = 0; i < tags.length; i++) {
+			for (int k = 0; k < quantities[i]; k++)
+				expanded[j++] = tags[i];
+		}
+		return expanded;
+	}
+
+	@Override
+	public NdefMessage[] decodeResult(ValueReader reader)
+			throws IOException, JSONException, FormatException {
+		List<NdefMessage> tags = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (!reader.nextName().equals("tags")) {
+				reader.skipValue();
+				continue;
+			}
+
+			tags = new ArrayList<NdefMessage>();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				// Base64 in JSON, plain bytes in CBOR
+				tags.add(new NdefMessage(reader.nextBytes()));
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+
+		if (tags == null)
+			throw new JSONException("No value for tags");
+		return expand(tags.toArray(new NdefMessage[tags.size()]),
+				m_quantities);
+	}
+
+	@Override
+	public void onDecodedResult(NdefMessage[] tags) {
+		stopSpinner();
+		onResult(tags);
+	}
+
 }
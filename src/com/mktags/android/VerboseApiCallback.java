@@ -1,28 +1,60 @@
 package com.mktags.android;
 
+import java.lang.ref.WeakReference;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.mktags.android.api.AbstractApiCallback;
 import com.mktags.android.api.ApiCallback;
+import com.mktags.android.api.CancellableApiCallback;
 
 /**
  * Verbose abstract implementation of {@link ApiCallback} that shows a spinner
  * while working in the background, logs errors and displays them to the user.
+ * 
+ * <p>
+ * The spinner is only shown if the call takes longer than a short delay, so
+ * fast calls and cached results don't flash a dialog on the screen. The delay
+ * can be changed with {@link #setSpinnerDelay(long)}.
+ * </p>
+ * 
+ * <p>
+ * The context and the spinner are only referenced weakly, so a call still in
+ * flight doesn't keep a destroyed {@link Activity} alive. Nothing is displayed
+ * once the activity is finishing.
+ * </p>
+ * 
+ * <p>
+ * The spinner is also dismissed when the call is cancelled, for example by
+ * {@link Mktags#cancelAll()}.
+ * </p>
  */
-public abstract class VerboseApiCallback extends AbstractApiCallback {
+public abstract class VerboseApiCallback extends AbstractApiCallback
+		implements CancellableApiCallback {
+
+	public static final long DEFAULT_SPINNER_DELAY = 300;
+
+	private static final Handler s_mainHandler = new Handler(
+			Looper.getMainLooper());
+	private static volatile long s_spinnerDelay = DEFAULT_SPINNER_DELAY;
 
-	private Context m_context;
-	private ProgressDialog m_spinner;
+	private WeakReference<Context> m_context;
+	private WeakReference<ProgressDialog> m_spinner;
+	private final Runnable m_spinnerStarter;
+	private volatile boolean m_stopped;
 	private boolean m_devel;
 
 	/**
-	 * Constructor. A "loading" spinner is started right away and is dismissed
-	 * when any of the callback methods is called.
+	 * Constructor. A "loading" spinner is started if none of the callback
+	 * methods is called within the spinner delay, and is dismissed when any of
+	 * them is called.
 	 * 
 	 * @param context
 	 *            Context or {@link Activity} used to display error messages to
@@ -33,8 +65,9 @@ public abstract class VerboseApiCallback extends AbstractApiCallback {
 	}
 
 	/**
-	 * Constructor. A "loading" spinner is started right away and is dismissed
-	 * when any of the callback methods is called.
+	 * Constructor. A "loading" spinner is started if none of the callback
+	 * methods is called within the spinner delay, and is dismissed when any of
+	 * them is called.
 	 * 
 	 * @param context
 	 *            Context or {@link Activity} used to display error messages to
@@ -44,9 +77,41 @@ public abstract class VerboseApiCallback extends AbstractApiCallback {
 	 *            messages to help development
 	 */
 	public VerboseApiCallback(Context context, boolean devel) {
-		m_context = context;
-		startSpinner();
+		m_context = new WeakReference<Context>(context);
 		m_devel = devel;
+
+		long delay = s_spinnerDelay;
+		if (delay > 0) {
+			m_spinnerStarter = new Runnable() {
+				@Override
+				public void run() {
+					if (!m_stopped)
+						startSpinner();
+				}
+			};
+			s_mainHandler.postDelayed(m_spinnerStarter, delay);
+		} else {
+			m_spinnerStarter = null;
+			startSpinner();
+		}
+	}
+
+	/**
+	 * Set how long calls may take before their spinner is shown. Applies to
+	 * callbacks created from now on.
+	 * 
+	 * @param delay
+	 *            Delay in milliseconds, or 0 to show the spinner right away
+	 */
+	public static void setSpinnerDelay(long delay) {
+		s_spinnerDelay = delay;
+	}
+
+	/**
+	 * @return Delay in milliseconds before the spinner is shown
+	 */
+	public static long getSpinnerDelay() {
+		return s_spinnerDelay;
 	}
 
 	@Override
@@ -86,24 +151,70 @@ public abstract class VerboseApiCallback extends AbstractApiCallback {
 		reportError("Oops! Something went wrong. Please make sure you have a signal and try again.");
 	}
 
+	@Override
+	public void onCancelled() {
+		// keep the spinner from showing after the cancel, whatever the thread
+		m_stopped = true;
+		if (m_spinnerStarter != null)
+			s_mainHandler.removeCallbacks(m_spinnerStarter);
+
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			stopSpinner();
+			return;
+		}
+
+		s_mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				stopSpinner();
+			}
+		});
+	}
+
+	/**
+	 * @return The context passed in the constructor, or <code>null</code> if
+	 *         it was garbage collected or is a finishing {@link Activity}
+	 */
 	protected Context getContext() {
-		return m_context;
+		Context context = m_context.get();
+		if (context instanceof Activity && ((Activity) context).isFinishing())
+			return null;
+		return context;
 	}
 
 	private void startSpinner() {
-		m_spinner = ProgressDialog.show(getContext(), null, "Loading...");
+		Context context = getContext();
+		if (context != null)
+			m_spinner = new WeakReference<ProgressDialog>(ProgressDialog.show(
+					context, null, "Loading..."));
 	}
 
-	private void stopSpinner() {
-		m_spinner.dismiss();
+	protected void stopSpinner() {
+		m_stopped = true;
+		if (m_spinnerStarter != null)
+			s_mainHandler.removeCallbacks(m_spinnerStarter);
+
+		ProgressDialog spinner = m_spinner != null ? m_spinner.get() : null;
+		if (spinner == null || !spinner.isShowing())
+			return;
+
+		try {
+			spinner.dismiss();
+		} catch (IllegalArgumentException e) {
+			// window already detached along with its activity
+		}
 	}
 
 	private void reportError(String message) {
-		UiUtils.alert(getContext(), message);
+		Context context = getContext();
+		if (context != null)
+			UiUtils.alert(context, message);
 	}
 
 	private void reportError(String title, String message) {
-		UiUtils.alert(getContext(), title, message);
+		Context context = getContext();
+		if (context != null)
+			UiUtils.alert(context, title, message);
 	}
 
 	private String tryAgainMessage(String code, String message) {
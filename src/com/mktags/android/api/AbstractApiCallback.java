@@ -5,26 +5,30 @@ import android.util.Log;
 import com.mktags.android.Consts;
 
 /**
- * Basic implementation of {@link ApiCallback} that logs all errors.
+ * Basic implementation of {@link ApiCallback} that logs all errors. Messages
+ * are only formatted if their log level is enabled for {@link Consts#TAG}.
  */
 public abstract class AbstractApiCallback implements ApiCallback {
 
 	@Override
 	public void onUserError(String code, String message) {
-		Log.i(Consts.TAG,
-				String.format("End-user error [%s]: %s", code, message));
+		if (Log.isLoggable(Consts.TAG, Log.INFO))
+			Log.i(Consts.TAG,
+					String.format("End-user error [%s]: %s", code, message));
 	}
 
 	@Override
 	public void onDeveloperError(String code, String message) {
-		Log.e(Consts.TAG,
-				String.format("Developer error [%s]: %s", code, message));
+		if (Log.isLoggable(Consts.TAG, Log.ERROR))
+			Log.e(Consts.TAG,
+					String.format("Developer error [%s]: %s", code, message));
 	}
 
 	@Override
 	public void onServerError(String code, String message) {
-		Log.e(Consts.TAG, String.format(
-				"Server error, please try again [%s]: %s", code, message));
+		if (Log.isLoggable(Consts.TAG, Log.ERROR))
+			Log.e(Consts.TAG, String.format(
+					"Server error, please try again [%s]: %s", code, message));
 	}
 
 	@Override
@@ -0,0 +1,462 @@
+package com.mktags.android.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mktags.android.Consts;
+import com.mktags.android.api.CallMetrics.Outcome;
+import com.mktags.android.json.ValueReader;
+
+/**
+ * <p>
+ * A single logical API call that may span several HTTP attempts. Transient
+ * failures are retried according to the {@link RetryPolicy} of the API and only
+ * the final outcome is passed on to the callers.
+ * </p>
+ * 
+ * <p>
+ * A call may be shared by several callers that made identical calls, each
+ * represented by an {@link ApiCallHandle}. The outcome is passed to the
+ * callback of every handle that wasn't cancelled, and the call is aborted once
+ * all of its handles are cancelled. The list of handles is guarded by the
+ * {@link ApiPoster} lock.
+ * </p>
+ */
+class ApiCall implements StreamingApiCallback<Object>, Runnable {
+
+	private ApiPoster m_poster;
+	private String m_api;
+	private String m_key;
+	private volatile JsonRequestEntity m_entity;
+	private volatile HttpUriRequest m_request;
+	private RetryPolicy m_policy;
+	private CircuitBreaker m_breaker;
+	private StreamingApiCallback<?> m_decoder;
+	private CallMetrics m_metrics;
+	private Handler m_handler;
+	private volatile int m_attempts;
+	private volatile long m_attemptTime;
+	private volatile int m_status;
+	private long m_startTime;
+	private volatile boolean m_cancelled;
+
+	private List<ApiCallHandle> m_handles = new ArrayList<ApiCallHandle>(1);
+	private boolean m_done;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param poster
+	 *            Poster used to make each attempt
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param key
+	 *            Key identifying identical calls
+	 * @param policy
+	 *            Retry policy of the API
+	 * @param breaker
+	 *            Circuit breaker of the API, or <code>null</code>
+	 * @param callback
+	 *            Callback of the first caller, which also decodes the result
+	 *            for all callers if it is a {@link StreamingApiCallback}
+	 * @param metrics
+	 *            Metrics to record, or <code>null</code> if not measured
+	 * @param handler
+	 *            Handler used to schedule retries
+	 * @param startTime
+	 *            Time the call was posted, before the request was encoded, from
+	 *            {@link SystemClock#elapsedRealtime()}
+	 */
+	public ApiCall(ApiPoster poster, String api, String key,
+			RetryPolicy policy, CircuitBreaker breaker, ApiCallback callback,
+			CallMetrics metrics, Handler handler, long startTime) {
+		m_poster = poster;
+		m_api = api;
+		m_key = key;
+		m_policy = policy;
+		m_breaker = breaker;
+		if (callback instanceof StreamingApiCallback)
+			m_decoder = (StreamingApiCallback<?>) callback;
+		m_metrics = metrics;
+		m_handler = handler;
+		m_startTime = startTime;
+	}
+
+	/**
+	 * @return Key identifying identical calls
+	 */
+	public String getKey() {
+		return m_key;
+	}
+
+	/**
+	 * @return API name without the <code>/api/</code> prefix
+	 */
+	public String getApi() {
+		return m_api;
+	}
+
+	/**
+	 * @return Encoded request
+	 */
+	public JsonRequestEntity getEntity() {
+		return m_entity;
+	}
+
+	/**
+	 * @return Number of attempts made so far
+	 */
+	public int getAttempts() {
+		return m_attempts;
+	}
+
+	/**
+	 * @return Wall clock time the last attempt was made
+	 */
+	public long getAttemptTime() {
+		return m_attemptTime;
+	}
+
+	/**
+	 * @return HTTP status of the last attempt, or -1 if there was no response
+	 */
+	public int getStatus() {
+		return m_status;
+	}
+
+	/**
+	 * @param status
+	 *            HTTP status of the current attempt
+	 */
+	void setStatus(int status) {
+		m_status = status;
+	}
+
+	/**
+	 * The server answered in CBOR.
+	 */
+	void onBinaryResponse() {
+		m_poster.onBinaryResponse();
+	}
+
+	/**
+	 * @return Metrics to record, or <code>null</code> if not measured
+	 */
+	public CallMetrics getMetrics() {
+		return m_metrics;
+	}
+
+	/**
+	 * Add a caller. Must hold the poster lock.
+	 * 
+	 * @param handle
+	 *            Handle of the caller
+	 */
+	void addHandle(ApiCallHandle handle) {
+		m_handles.add(handle);
+	}
+
+	/**
+	 * Remove a caller. Must hold the poster lock.
+	 * 
+	 * @param handle
+	 *            Handle of the caller
+	 * @return <code>true</code> if no callers are left and the call should be
+	 *         cancelled
+	 */
+	boolean removeHandle(ApiCallHandle handle) {
+		m_handles.remove(handle);
+		return m_handles.isEmpty() && !m_done;
+	}
+
+	/**
+	 * Mark the outcome as reported. Must hold the poster lock.
+	 * 
+	 * @return The callers to report the outcome to
+	 */
+	List<ApiCallHandle> finish() {
+		m_done = true;
+		return new ArrayList<ApiCallHandle>(m_handles);
+	}
+
+	/**
+	 * Make the first attempt.
+	 * 
+	 * @param entity
+	 *            Encoded request, sent as-is with every attempt
+	 */
+	public void start(JsonRequestEntity entity) {
+		m_entity = entity;
+		run();
+	}
+
+	/**
+	 * Make the next attempt, unless the circuit is open.
+	 */
+	@Override
+	public void run() {
+		if (m_cancelled)
+			return;
+
+		if (m_breaker != null && !m_breaker.allowRequest()) {
+			m_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					reject();
+				}
+			});
+			return;
+		}
+
+		m_attempts++;
+		if (m_metrics != null)
+			m_metrics.onAttempt();
+		send();
+	}
+
+	/**
+	 * Send the current attempt.
+	 */
+	private void send() {
+		if (m_cancelled)
+			return;
+
+		m_attemptTime = System.currentTimeMillis();
+		m_status = -1;
+		m_request = m_poster.doCall(m_api, m_entity, this);
+	}
+
+	/**
+	 * Abort the call, once no caller is interested in it.
+	 */
+	public void cancel() {
+		m_cancelled = true;
+		m_handler.removeCallbacks(this);
+
+		HttpUriRequest request = m_request;
+		if (request != null)
+			request.abort();
+	}
+
+	@Override
+	public void onSuccess(JSONObject result) {
+		if (m_cancelled)
+			return;
+		record(Outcome.SUCCESS, null);
+		recordSuccess();
+		if (m_breaker != null)
+			m_breaker.onSuccess();
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (handle.isCancelled())
+				continue;
+			try {
+				handle.getCallback().onSuccess(result);
+			} catch (JSONException e) {
+				handle.getCallback().onException(e);
+			}
+		}
+		reportMetrics(Outcome.SUCCESS, handles);
+	}
+
+	/**
+	 * @return <code>true</code> if the result is read directly from the
+	 *         response stream
+	 */
+	public boolean isStreaming() {
+		return m_decoder != null;
+	}
+
+	@Override
+	public Object decodeResult(ValueReader reader) throws Exception {
+		return m_decoder.decodeResult(reader);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void onDecodedResult(Object result) {
+		if (m_cancelled)
+			return;
+		record(Outcome.SUCCESS, null);
+		recordSuccess();
+		if (m_breaker != null)
+			m_breaker.onSuccess();
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				((StreamingApiCallback<Object>) handle.getCallback())
+						.onDecodedResult(result);
+		}
+		reportMetrics(Outcome.SUCCESS, handles);
+	}
+
+	@Override
+	public void onUserError(String code, String message) {
+		if (m_cancelled)
+			return;
+		record(Outcome.USER_ERROR, code);
+		if (m_breaker != null)
+			m_breaker.onSuccess();
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				handle.getCallback().onUserError(code, message);
+		}
+		reportMetrics(Outcome.USER_ERROR, handles);
+	}
+
+	@Override
+	public void onDeveloperError(String code, String message) {
+		if (m_cancelled)
+			return;
+		record(Outcome.DEVELOPER_ERROR, code);
+		if (m_breaker != null)
+			m_breaker.onSuccess();
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				handle.getCallback().onDeveloperError(code, message);
+		}
+		reportMetrics(Outcome.DEVELOPER_ERROR, handles);
+	}
+
+	@Override
+	public void onServerError(String code, String message) {
+		if (m_cancelled)
+			return;
+		record(Outcome.SERVER_ERROR, code);
+		if (m_breaker != null)
+			m_breaker.onFailure();
+		if (m_policy.isRetryable(code) && retry())
+			return;
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				handle.getCallback().onServerError(code, message);
+		}
+		reportMetrics(Outcome.SERVER_ERROR, handles);
+	}
+
+	@Override
+	public void onException(Throwable e) {
+		if (m_cancelled)
+			return;
+		if (isBinaryRejected(e)) {
+			sendAsJson();
+			return;
+		}
+		record(Outcome.EXCEPTION, e.getClass().getName());
+		if (m_breaker != null && m_policy.isRetryable(e))
+			m_breaker.onFailure();
+		if (m_policy.isRetryable(e) && retry())
+			return;
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				handle.getCallback().onException(e);
+		}
+		reportMetrics(Outcome.EXCEPTION, handles);
+	}
+
+	/**
+	 * Fail without making a request, since the circuit is open.
+	 */
+	private void reject() {
+		if (m_cancelled)
+			return;
+
+		List<ApiCallHandle> handles = m_poster.complete(this);
+		for (ApiCallHandle handle : handles) {
+			if (!handle.isCancelled())
+				handle.getCallback().onServerError(ApiPoster.CIRCUIT_OPEN,
+						"Service temporarily unavailable");
+		}
+		reportMetrics(Outcome.SERVER_ERROR, handles);
+	}
+
+	private void record(Outcome outcome, String error) {
+		FlightRecorder recorder = ApiPoster.getFlightRecorder();
+		if (recorder != null && m_entity != null)
+			recorder.record(this, outcome, error);
+	}
+
+	private void reportMetrics(Outcome outcome, List<ApiCallHandle> handles) {
+		MetricsListener listener = ApiPoster.getMetricsListener();
+		if (m_metrics == null || listener == null)
+			return;
+
+		int callers = 0;
+		for (int i = 0; i < handles.size(); i++) {
+			if (!handles.get(i).isCancelled())
+				callers++;
+		}
+		m_metrics.onOutcome(outcome, callers);
+		listener.onCallMetrics(m_metrics);
+	}
+
+	private void recordSuccess() {
+		long latency = SystemClock.elapsedRealtime() - m_startTime;
+		m_poster.recordSuccess(m_api, latency);
+	}
+
+	private boolean isBinaryRejected(Throwable e) {
+		if (!m_entity.isBinary() || !(e instanceof HttpResponseException))
+			return false;
+		int status = ((HttpResponseException) e).getStatusCode();
+		return status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE;
+	}
+
+	/**
+	 * Encode the request again as JSON and send it right away, as the same
+	 * attempt. This doesn't count as a retry and isn't recorded, since the
+	 * server never processed the request.
+	 */
+	private void sendAsJson() {
+		m_poster.onBinaryRejected();
+		ApiExecutors.encoder().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					m_entity = m_entity.toJsonEntity();
+				} catch (final JSONException e) {
+					m_handler.post(new Runnable() {
+						@Override
+						public void run() {
+							onException(e);
+						}
+					});
+					return;
+				}
+				send();
+			}
+		});
+	}
+
+	private boolean retry() {
+		if (m_attempts >= m_policy.getMaxAttempts())
+			return false;
+
+		long delay = m_policy.getDelay(m_attempts);
+		if (Log.isLoggable(Consts.TAG, Log.INFO))
+			Log.i(Consts.TAG, "Retrying " + m_api + " in " + delay + "ms");
+		m_handler.postDelayed(this, delay);
+		return true;
+	}
+
+}
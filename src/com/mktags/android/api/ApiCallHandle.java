@@ -0,0 +1,71 @@
+package com.mktags.android.api;
+
+/**
+ * The part of an API call that belongs to a single caller. Identical calls
+ * that are in flight at the same time share one {@link ApiCall}, and each
+ * caller gets the outcome passed to its own callback, unless it cancelled.
+ * Cancelling notifies callbacks that implement {@link CancellableApiCallback}.
+ */
+class ApiCallHandle implements ApiRequest {
+
+	private ApiPoster m_poster;
+	private ApiCallback m_callback;
+	private ApiCall m_call;
+	private volatile boolean m_cancelled;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param poster
+	 *            Poster that made the call
+	 * @param callback
+	 *            Callback to be reported with the final outcome
+	 */
+	public ApiCallHandle(ApiPoster poster, ApiCallback callback) {
+		m_poster = poster;
+		m_callback = callback;
+	}
+
+	/**
+	 * @return Callback to be reported with the final outcome
+	 */
+	public ApiCallback getCallback() {
+		return m_callback;
+	}
+
+	/**
+	 * Attach to the call that does the actual work.
+	 * 
+	 * @param call
+	 *            The shared call
+	 * @return <code>false</code> if this call was already cancelled
+	 */
+	public synchronized boolean attach(ApiCall call) {
+		if (m_cancelled)
+			return false;
+		m_call = call;
+		return true;
+	}
+
+	@Override
+	public void cancel() {
+		ApiCall call;
+		synchronized (this) {
+			if (m_cancelled)
+				return;
+			m_cancelled = true;
+			call = m_call;
+		}
+
+		if (call != null)
+			m_poster.leave(call, this);
+		if (m_callback instanceof CancellableApiCallback)
+			((CancellableApiCallback) m_callback).onCancelled();
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return m_cancelled;
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.mktags.android.api;
+
+/**
+ * Remote failure of an API call, as reported by an {@link ApiFuture}. The
+ * kinds of failures match the error methods of {@link ApiCallback}.
+ */
+public class ApiException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kind of a remote failure.
+	 */
+	public static enum Kind {
+		/**
+		 * @see ApiCallback#onUserError(String, String)
+		 */
+		USER_ERROR,
+		/**
+		 * @see ApiCallback#onDeveloperError(String, String)
+		 */
+		DEVELOPER_ERROR,
+		/**
+		 * @see ApiCallback#onServerError(String, String)
+		 */
+		SERVER_ERROR
+	}
+
+	private Kind m_kind;
+	private String m_code;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param kind
+	 *            Kind of the failure
+	 * @param code
+	 *            Short error code that can be used to identify the error
+	 * @param message
+	 *            Error message, as returned by the API
+	 */
+	public ApiException(Kind kind, String code, String message) {
+		super(message);
+		m_kind = kind;
+		m_code = code;
+	}
+
+	/**
+	 * @return Kind of the failure
+	 */
+	public Kind getKind() {
+		return m_kind;
+	}
+
+	/**
+	 * @return Short error code that can be used to identify the error
+	 */
+	public String getCode() {
+		return m_code;
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A single HTTP request of an API call, as passed to an {@link ApiTransport}.
+ * The transport sends the request and reports back with exactly one call to
+ * either {@link #onResponse(HttpResponse)} or {@link #onFailure(Throwable)}.
+ */
+public interface ApiExchange {
+
+	/**
+	 * @return The request to send. Cancelled calls abort this request.
+	 */
+	public HttpUriRequest getRequest();
+
+	/**
+	 * Called on a background thread once the response headers arrive. The
+	 * response entity is read from the connection during this call, so the
+	 * connection must not be released until it returns.
+	 * 
+	 * @param response
+	 *            The response
+	 * @throws IOException
+	 *             In case of an error reading the response, which the
+	 *             transport should then pass to {@link #onFailure(Throwable)}
+	 */
+	public void onResponse(HttpResponse response) throws IOException;
+
+	/**
+	 * Called when the request could not be sent or the response could not be
+	 * read, usually due to connection problems.
+	 * 
+	 * @param e
+	 *            The exception
+	 */
+	public void onFailure(Throwable e);
+
+}
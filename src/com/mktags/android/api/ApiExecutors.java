@@ -0,0 +1,89 @@
+package com.mktags.android.api;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * <p>
+ * Executors of the API call pipeline. Every call goes through three stages:
+ * </p>
+ * <ol>
+ * <li>The request is encoded on the shared encoder thread.</li>
+ * <li>The request is sent and the response is read, parsed and decoded on a
+ * network thread of the {@link ApiTransport}, as the response is streamed.</li>
+ * <li>Only the final {@link ApiCallback} method is posted to the thread of the
+ * callback's context, usually the UI thread.</li>
+ * </ol>
+ * 
+ * <p>
+ * All background threads run with background priority so they don't compete
+ * with the UI thread.
+ * </p>
+ */
+class ApiExecutors {
+
+	private static ExecutorService s_encoder;
+	private static ExecutorService s_storage;
+
+	/**
+	 * @return Shared single-threaded executor used to encode requests, so
+	 *         requests are encoded in the order they were made
+	 */
+	public static synchronized ExecutorService encoder() {
+		if (s_encoder == null)
+			s_encoder = Executors
+					.newSingleThreadExecutor(new BackgroundThreadFactory(
+							"mktags-encoder"));
+		return s_encoder;
+	}
+
+	/**
+	 * @return Shared single-threaded executor used for file storage, so
+	 *         storage is accessed by one thread at a time
+	 */
+	public static synchronized ExecutorService storage() {
+		if (s_storage == null)
+			s_storage = Executors
+					.newSingleThreadExecutor(new BackgroundThreadFactory(
+							"mktags-storage"));
+		return s_storage;
+	}
+
+	/**
+	 * @param threads
+	 *            Number of threads
+	 * @return New executor used to send requests and read their responses
+	 */
+	public static ExecutorService newNetworkExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads,
+				new BackgroundThreadFactory("mktags-network"));
+	}
+
+	private static class BackgroundThreadFactory implements ThreadFactory {
+
+		private String m_name;
+		private AtomicInteger m_count = new AtomicInteger();
+
+		public BackgroundThreadFactory(String name) {
+			m_name = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			String name = m_name + "-" + m_count.incrementAndGet();
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, name);
+		}
+
+	}
+
+}
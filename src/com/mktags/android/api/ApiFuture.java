@@ -0,0 +1,411 @@
+package com.mktags.android.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>
+ * {@link ApiCallback} that turns the outcome of a call into a {@link Future},
+ * so several calls can be made at once and combined with
+ * {@link #join(ApiFuture...)} or chained with listeners, instead of nesting
+ * callbacks.
+ * </p>
+ * 
+ * <p>
+ * A successful call completes the future with the value returned by
+ * {@link #parse(JSONObject)}. Remote failures complete it with an
+ * {@link ApiException}, and local failures with their exception, both
+ * wrapped in an {@link ExecutionException} by {@link #get()}.
+ * </p>
+ * 
+ * <p>
+ * Calls report their outcome on the main thread, so {@link #get()} must not be
+ * called there before the future is done. Use
+ * {@link #addListener(Listener, Executor)} instead.
+ * </p>
+ * 
+ * @param <T>
+ *            Type of the result
+ */
+public abstract class ApiFuture<T> extends AbstractApiCallback implements
+		Future<T>, ApiRequest {
+
+	/**
+	 * Listener notified once a future is done.
+	 * 
+	 * @param <T>
+	 *            Type of the result
+	 */
+	public interface Listener<T> {
+
+		/**
+		 * Called once the future is done, whether it succeeded, failed, timed
+		 * out or was cancelled. {@link ApiFuture#get()} doesn't block when
+		 * called from here.
+		 * 
+		 * @param future
+		 *            The future
+		 */
+		public void onComplete(ApiFuture<T> future);
+
+	}
+
+	private static final Handler s_timeoutHandler = new Handler(
+			Looper.getMainLooper());
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private CountDownLatch m_latch = new CountDownLatch(1);
+
+	// guarded by this
+	private ApiRequest m_request;
+	private boolean m_done;
+	private T m_result;
+	private Throwable m_failure;
+	private List<Runnable> m_listeners = new ArrayList<Runnable>();
+	private Runnable m_timeout;
+
+	/**
+	 * Extract the result of a successful call.
+	 * 
+	 * @param result
+	 *            The result, as returned by the API
+	 * @return The value the future completes with
+	 * @throws Exception
+	 *             In case of an error parsing the result, which then fails
+	 *             the future
+	 */
+	protected abstract T parse(JSONObject result) throws Exception;
+
+	/**
+	 * Set the handle of the call this future waits for, so cancelling the
+	 * future or timing out also cancels the call.
+	 * 
+	 * @param request
+	 *            Handle of the call
+	 * @return This future, for convenience
+	 */
+	public ApiFuture<T> setRequest(ApiRequest request) {
+		boolean done;
+		synchronized (this) {
+			m_request = request;
+			done = m_done;
+		}
+
+		// the call is no longer needed once cancelled or timed out
+		if (done)
+			request.cancel();
+		return this;
+	}
+
+	/**
+	 * Fail the future with a {@link TimeoutException} and cancel its call, if
+	 * it's not done within the given time.
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds, counted from now
+	 * @return This future, for convenience
+	 */
+	public ApiFuture<T> setTimeout(long timeout) {
+		Runnable timeoutRunnable = new Runnable() {
+			@Override
+			public void run() {
+				if (complete(null, new TimeoutException("Call timed out")))
+					cancelRequest();
+			}
+		};
+
+		synchronized (this) {
+			if (m_done)
+				return this;
+			if (m_timeout != null)
+				s_timeoutHandler.removeCallbacks(m_timeout);
+			m_timeout = timeoutRunnable;
+		}
+
+		s_timeoutHandler.postDelayed(timeoutRunnable, timeout);
+		return this;
+	}
+
+	/**
+	 * Notify a listener once the future is done, on the thread that completes
+	 * it. That's usually the main thread.
+	 * 
+	 * @param listener
+	 *            Listener to notify, right away if the future is already done
+	 */
+	public void addListener(Listener<T> listener) {
+		addListener(listener, DIRECT);
+	}
+
+	/**
+	 * Notify a listener once the future is done.
+	 * 
+	 * @param listener
+	 *            Listener to notify, right away if the future is already done
+	 * @param executor
+	 *            Executor the listener is called on
+	 */
+	public void addListener(final Listener<T> listener,
+			final Executor executor) {
+		Runnable notifier = new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						listener.onComplete(ApiFuture.this);
+					}
+				});
+			}
+		};
+
+		synchronized (this) {
+			if (!m_done) {
+				m_listeners.add(notifier);
+				return;
+			}
+		}
+
+		notifier.run();
+	}
+
+	/**
+	 * Create a future that completes once all the given futures succeed. If
+	 * any of them fails, the joined future fails with the same exception and
+	 * the others are cancelled. Cancelling the joined future cancels them all.
+	 * 
+	 * @param futures
+	 *            Futures to join
+	 * @return The joined future, whose result is always <code>null</code>
+	 */
+	public static ApiFuture<Void> join(ApiFuture<?>... futures) {
+		JoinFuture join = new JoinFuture(futures);
+		for (ApiFuture<?> future : futures)
+			join.watch(future);
+		return join;
+	}
+
+	@Override
+	public void onSuccess(JSONObject result) {
+		T value;
+		try {
+			value = parse(result);
+		} catch (Exception e) {
+			onException(e);
+			return;
+		}
+		complete(value, null);
+	}
+
+	@Override
+	public void onUserError(String code, String message) {
+		super.onUserError(code, message);
+		complete(null, new ApiException(ApiException.Kind.USER_ERROR, code,
+				message));
+	}
+
+	@Override
+	public void onDeveloperError(String code, String message) {
+		super.onDeveloperError(code, message);
+		complete(null, new ApiException(ApiException.Kind.DEVELOPER_ERROR,
+				code, message));
+	}
+
+	@Override
+	public void onServerError(String code, String message) {
+		super.onServerError(code, message);
+		complete(null, new ApiException(ApiException.Kind.SERVER_ERROR, code,
+				message));
+	}
+
+	@Override
+	public void onException(Throwable e) {
+		super.onException(e);
+		complete(null, e);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(null, new CancellationException("Call cancelled")))
+			return false;
+
+		cancelRequest();
+		return true;
+	}
+
+	@Override
+	public void cancel() {
+		cancel(true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return m_failure instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return m_done;
+	}
+
+	/**
+	 * Wait for the call to complete.
+	 * 
+	 * @throws IllegalStateException
+	 *             If called on the main thread before the future is done
+	 */
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		checkNotBlockingMainThread();
+		m_latch.await();
+		return getResult();
+	}
+
+	/**
+	 * Wait for the call to complete, for the given time at most. The call
+	 * goes on if the time runs out. Use {@link #setTimeout(long)} to cancel it
+	 * instead.
+	 * 
+	 * @throws IllegalStateException
+	 *             If called on the main thread before the future is done
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		checkNotBlockingMainThread();
+		if (!m_latch.await(timeout, unit))
+			throw new TimeoutException();
+		return getResult();
+	}
+
+	/**
+	 * @return The exception the future failed with, or <code>null</code> if
+	 *         it succeeded or is not done yet
+	 */
+	public synchronized Throwable getFailure() {
+		return m_failure;
+	}
+
+	private synchronized T getResult() throws ExecutionException {
+		if (m_failure instanceof CancellationException)
+			throw (CancellationException) m_failure;
+		if (m_failure != null)
+			throw new ExecutionException(m_failure);
+		return m_result;
+	}
+
+	private void checkNotBlockingMainThread() {
+		if (m_latch.getCount() > 0
+				&& Looper.myLooper() == Looper.getMainLooper())
+			throw new IllegalStateException(
+					"Waiting on the main thread would deadlock, "
+							+ "use addListener() instead");
+	}
+
+	private void cancelRequest() {
+		ApiRequest request;
+		synchronized (this) {
+			request = m_request;
+		}
+
+		if (request != null)
+			request.cancel();
+	}
+
+	/**
+	 * @return <code>true</code> if the future was completed by this call,
+	 *         <code>false</code> if it was already done
+	 */
+	boolean complete(T result, Throwable failure) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (m_done)
+				return false;
+
+			m_done = true;
+			m_result = result;
+			m_failure = failure;
+			listeners = m_listeners;
+			m_listeners = null;
+			if (m_timeout != null) {
+				s_timeoutHandler.removeCallbacks(m_timeout);
+				m_timeout = null;
+			}
+		}
+
+		m_latch.countDown();
+		for (Runnable listener : listeners)
+			listener.run();
+		return true;
+	}
+
+	private static class JoinFuture extends ApiFuture<Void> {
+
+		private ApiFuture<?>[] m_futures;
+		private AtomicInteger m_remaining;
+
+		public JoinFuture(ApiFuture<?>[] futures) {
+			m_futures = futures.clone();
+			m_remaining = new AtomicInteger(futures.length);
+			if (futures.length == 0)
+				complete(null, null);
+		}
+
+		public <T> void watch(ApiFuture<T> future) {
+			future.addListener(new Listener<T>() {
+				@Override
+				public void onComplete(ApiFuture<T> future) {
+					Throwable failure = future.getFailure();
+					if (failure instanceof CancellationException) {
+						cancel(true);
+					} else if (failure != null) {
+						if (complete(null, failure))
+							cancelAll();
+					} else if (m_remaining.decrementAndGet() == 0) {
+						complete(null, null);
+					}
+				}
+			});
+		}
+
+		@Override
+		protected Void parse(JSONObject result) {
+			return null;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning))
+				return false;
+
+			cancelAll();
+			return true;
+		}
+
+		private void cancelAll() {
+			for (ApiFuture<?> future : m_futures)
+				future.cancel(true);
+		}
+
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.os.Handler;
+
+/**
+ * A single HTTP attempt of an {@link ApiCall}. The response is read on the
+ * transport's background thread and the outcome is posted to the callback's
+ * thread.
+ */
+class ApiHttpRequest implements ApiExchange {
+
+	private HttpUriRequest m_request;
+	private ApiHttpResponseHandler m_responseHandler;
+	private Handler m_handler;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param request
+	 *            The request
+	 * @param responseHandler
+	 *            Handler used to read the response
+	 * @param handler
+	 *            Handler of the callback's thread
+	 */
+	public ApiHttpRequest(HttpUriRequest request,
+			ApiHttpResponseHandler responseHandler, Handler handler) {
+		m_request = request;
+		m_responseHandler = responseHandler;
+		m_handler = handler;
+	}
+
+	@Override
+	public HttpUriRequest getRequest() {
+		return m_request;
+	}
+
+	@Override
+	public void onResponse(HttpResponse response) throws IOException {
+		m_handler.post(m_responseHandler.handleResponse(response));
+	}
+
+	@Override
+	public void onFailure(Throwable e) {
+		if (m_request.isAborted())
+			return;
+		m_handler.post(m_responseHandler.exception(e));
+	}
+
+}
@@ -1,71 +1,221 @@
 package com.mktags.android.api;
 
-import org.json.JSONArray;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.loopj.android.http.JsonHttpResponseHandler;
+import com.mktags.android.json.CborStreamReader;
+import com.mktags.android.json.JsonStreamReader;
+import com.mktags.android.json.ValueReader;
 
 /**
- * Request handler for API responses that processes all the basic error
- * conditions and calls {@link ApiCallback#onSuccess(JSONObject)}.
+ * <p>
+ * Response handler for API responses that processes all the basic error
+ * conditions and calls {@link ApiCallback#onSuccess(JSONObject)}, or
+ * {@link StreamingApiCallback#onDecodedResult(Object)} for streaming
+ * callbacks.
+ * </p>
+ * 
+ * <p>
+ * The response is read incrementally from the connection on the background
+ * thread. The outcome is returned as a {@link Runnable} that notifies the
+ * callback and should be run on the callback's thread.
+ * </p>
+ * 
+ * <p>
+ * Responses are read as CBOR when their content type says so, and as JSON
+ * otherwise.
+ * </p>
  */
-class ApiHttpResponseHandler extends JsonHttpResponseHandler {
+class ApiHttpResponseHandler implements ResponseHandler<Runnable> {
+
+	private static final String DEFAULT_CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
 
-	private ApiCallback m_callback;
+	private ApiCall m_call;
 
 	/**
 	 * Constructor.
 	 * 
-	 * @param callback
-	 *            Callback to be reported with all errors and results
+	 * @param call
+	 *            Call to be reported with all errors and results
 	 */
-	public ApiHttpResponseHandler(ApiCallback callback) {
-		this.m_callback = callback;
+	public ApiHttpResponseHandler(ApiCall call) {
+		m_call = call;
 	}
 
 	@Override
-	public void onSuccess(JSONObject response) {
-		handleResopnse(response);
+	public Runnable handleResponse(HttpResponse response) throws IOException {
+		CallMetrics metrics = m_call.getMetrics();
+		if (metrics != null)
+			metrics.onFirstByte();
+
+		StatusLine status = response.getStatusLine();
+		m_call.setStatus(status.getStatusCode());
+		if (status.getStatusCode() >= 300)
+			throw new HttpResponseException(status.getStatusCode(),
+					status.getReasonPhrase());
+
+		HttpEntity entity = response.getEntity();
+		if (entity == null)
+			throw new ClientProtocolException("Response contains no content");
+
+		String charset = EntityUtils.getContentCharSet(entity);
+		if (charset == null)
+			charset = DEFAULT_CHARSET;
+
+		InputStream content = entity.getContent();
+		CountingInputStream counter = null;
+		if (metrics != null)
+			content = counter = new CountingInputStream(content);
+
+		ValueReader reader;
+		if (isBinary(entity)) {
+			m_call.onBinaryResponse();
+			reader = new CborStreamReader(new BufferedInputStream(content,
+					BUFFER_SIZE));
+		} else {
+			reader = new JsonStreamReader(new InputStreamReader(content,
+					charset));
+		}
+		try {
+			return handleResponse(reader);
+		} catch (JSONException e) {
+			return exception(e);
+		} catch (IllegalStateException e) {
+			return exception(new JSONException(e.getMessage()));
+		} finally {
+			if (metrics != null)
+				metrics.onParsed(counter.getCount());
+		}
 	}
 
-	@Override
-	public void onSuccess(JSONArray jsonArray) {
-		m_callback.onException(new JSONException("expected object, got array"));
+	/**
+	 * Create the outcome of a failed call.
+	 * 
+	 * @param e
+	 *            The exception the call failed with
+	 * @return Runnable that notifies the callback
+	 */
+	public Runnable exception(final Throwable e) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				m_call.onException(e);
+			}
+		};
 	}
 
-	@Override
-	public void onFailure(Throwable e, String message) {
-		m_callback.onException(e);
+	private static boolean isBinary(HttpEntity entity) {
+		Header type = entity.getContentType();
+		return type != null
+				&& type.getValue().toLowerCase(Locale.US)
+						.startsWith(JsonRequestEntity.CBOR_TYPE);
 	}
 
-	private void handleResopnse(JSONObject response) {
-		try {
-			boolean success = response.getBoolean("success");
-			if (success) {
-				m_callback.onSuccess(response.getJSONObject("result"));
+	private Runnable handleResponse(ValueReader reader)
+			throws IOException, JSONException {
+		Boolean success = null;
+		JSONObject errorJson = null;
+		JSONObject resultJson = null;
+		Runnable result = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("success")) {
+				success = Boolean.valueOf(reader.nextBoolean());
+			} else if (name.equals("result") && success == null) {
+				// unusual order, so the result must be kept until we know
+				resultJson = reader.readJsonObject();
+			} else if (name.equals("result") && success.booleanValue()) {
+				try {
+					result = handleResult(reader);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					return exception(e);
+				}
+			} else if (name.equals("error")) {
+				errorJson = reader.readJsonObject();
 			} else {
-				handleApiException(response);
+				reader.skipValue();
 			}
-		} catch (JSONException e) {
-			m_callback.onException(e);
 		}
-	}
+		reader.endObject();
 
-	private void handleApiException(JSONObject response) throws JSONException {
-		JSONObject errorJson = response.getJSONObject("error");
+		if (success == null)
+			throw new JSONException("No value for success");
+		if (!success.booleanValue())
+			return handleApiException(errorJson);
+		if (result != null)
+			return result;
+		if (resultJson == null)
+			throw new JSONException("No value for result");
 
-		String type = errorJson.getString("type");
-		String code = errorJson.getString("code");
-		String message = errorJson.getString("message");
+		try {
+			return handleResult(new JsonStreamReader(new StringReader(
+					resultJson.toString())));
+		} catch (Exception e) {
+			return exception(e);
+		}
+	}
 
-		if (type.equals("developer")) {
-			m_callback.onDeveloperError(code, message);
-		} else if (type.equals("user")) {
-			m_callback.onUserError(code, message);
-		} else {
-			m_callback.onServerError(code, message);
+	private Runnable handleResult(ValueReader reader) throws Exception {
+		if (m_call.isStreaming()) {
+			final Object decoded = m_call.decodeResult(reader);
+			return new Runnable() {
+				@Override
+				public void run() {
+					m_call.onDecodedResult(decoded);
+				}
+			};
 		}
+
+		final JSONObject resultJson = reader.readJsonObject();
+		return new Runnable() {
+			@Override
+			public void run() {
+				m_call.onSuccess(resultJson);
+			}
+		};
+	}
+
+	private Runnable handleApiException(JSONObject response)
+			throws JSONException {
+		if (response == null)
+			throw new JSONException("No value for error");
+
+		final String type = response.getString("type");
+		final String code = response.getString("code");
+		final String message = response.getString("message");
+
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (type.equals("developer")) {
+					m_call.onDeveloperError(code, message);
+				} else if (type.equals("user")) {
+					m_call.onUserError(code, message);
+				} else {
+					m_call.onServerError(code, message);
+				}
+			}
+		};
 	}
 
-}
\ No newline at end of file
+}
@@ -1,34 +1,131 @@
 package com.mktags.android.api;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.loopj.android.http.AsyncHttpClient;
 import com.mktags.android.Consts;
 import com.mktags.android.Mktags;
-import com.mktags.android.tags.TagDescriptorList;
+import com.mktags.android.api.ApiScheduler.Priority;
+import com.mktags.android.json.JsonWritable;
+import com.mktags.android.json.ValueWriter;
+import com.mktags.android.tags.TagDescriptorSource;
 
 /**
  * Helper class that handles all of the details of calling an API.
  * 
+ * <p>
+ * Failed calls are retried according to the {@link RetryPolicy} of each API.
+ * By default <code>price</code> and <code>test</code> are retried as they are
+ * safe to repeat, and <code>buy</code> is retried with an idempotency key.
+ * </p>
+ * 
+ * <p>
+ * Each API also has a {@link CircuitBreaker}. While the server keeps failing,
+ * calls fail right away with the {@link #CIRCUIT_OPEN} server error instead of
+ * adding to its load.
+ * </p>
+ * 
+ * <p>
+ * Requests are sent through an {@link ApiScheduler}, so a <code>buy</code> is
+ * never delayed by a burst of <code>price</code> calls.
+ * </p>
+ * 
+ * <p>
+ * Identical calls, with the same API and the same parameters, that are made
+ * while one of them is still in flight share a single request. The outcome is
+ * reported to the callbacks of all of them. Calls with an idempotency key are
+ * never shared, since each gets a key of its own.
+ * </p>
+ * 
+ * <p>
+ * Calls never block the calling thread. Requests are encoded and responses
+ * are parsed in the background, and only the final callback method is called
+ * on the thread of the context, as described in {@link ApiExecutors}.
+ * </p>
+ * 
+ * <p>
+ * Requests are sent as JSON until the server answers with CBOR, which shows it
+ * understands the binary format. Later requests are then sent as CBOR, which
+ * is smaller and saves encoding raw payloads in Base64. If the server rejects
+ * a CBOR request, the call is sent again as JSON and binary requests are no
+ * longer used. See {@link #setBinaryEnabled(boolean)}.
+ * </p>
+ * 
  * @see Mktags
  */
 public class ApiPoster {
 
+	/**
+	 * Code of the server error reported when a call fails right away because
+	 * the {@link CircuitBreaker} of its API is open.
+	 */
+	public static final String CIRCUIT_OPEN = "circuit_open";
+
+	static final String IDEMPOTENCY_KEY = "idempotency_key";
+
+	private static final String ACCEPT_BINARY = JsonRequestEntity.CBOR_TYPE
+			+ ", application/json;q=0.5";
+
+	private static final AtomicLong s_timeToFirstPrice = new AtomicLong(-1);
+	private static volatile MetricsListener s_metricsListener;
+	private static volatile FlightRecorder s_flightRecorder = new FlightRecorder(
+			FlightRecorder.DEFAULT_CAPACITY);
+	private static final Map<String, ApiPoster> s_shared =
+			new HashMap<String, ApiPoster>();
+
 	private String m_apiKey;
-	private Context m_context;
-	private AsyncHttpClient m_httpClient;
+	private Handler m_handler;
+	private Map<String, RetryPolicy> m_retryPolicies;
+	private Map<String, CircuitBreaker> m_circuitBreakers;
+	private Map<String, Priority> m_priorities;
+	private ApiScheduler m_scheduler;
+	private Map<String, ApiCall> m_calls = new HashMap<String, ApiCall>();
+	private AtomicLong m_callCount = new AtomicLong();
+	private AtomicLong m_coalescedCount = new AtomicLong();
+	private volatile boolean m_binaryEnabled = true;
+	private volatile boolean m_binaryRequests;
 
 	/**
-	 * Constructor.
+	 * Get the poster shared by the whole process for an API key, which is also
+	 * the one used by {@link Mktags} with the default transport. Sharing it
+	 * shares its identical-call sharing and circuit breakers.
+	 * 
+	 * @param context
+	 *            Any context of the app
+	 * @param apiKey
+	 *            The API key of your account
+	 * @return The shared poster, sending through {@link SharedHttpTransport}
+	 */
+	public static synchronized ApiPoster getShared(Context context,
+			String apiKey) {
+		ApiPoster poster = s_shared.get(apiKey);
+		if (poster == null) {
+			Context app = context.getApplicationContext();
+			poster = new ApiPoster(app, apiKey,
+					SharedHttpTransport.getInstance(app));
+			s_shared.put(apiKey, poster);
+		}
+		return poster;
+	}
+
+	/**
+	 * Constructor. Requests are sent through the process-wide
+	 * {@link SharedHttpTransport}.
 	 * 
 	 * @param context
 	 *            Context in which callbacks should be called
@@ -36,11 +133,209 @@ public class ApiPoster {
 	 *            The API key of your account
 	 */
 	public ApiPoster(Context context, String apiKey) {
-		m_context = context;
+		this(context, apiKey, SharedHttpTransport.getInstance(context));
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            Context in which callbacks should be called
+	 * @param apiKey
+	 *            The API key of your account
+	 * @param transport
+	 *            Transport used to send requests
+	 */
+	public ApiPoster(Context context, String apiKey, ApiTransport transport) {
 		m_apiKey = apiKey;
+		m_handler = new Handler(context.getMainLooper());
+
+		m_retryPolicies = new HashMap<String, RetryPolicy>();
+		m_retryPolicies.put("price", new RetryPolicy(3, 250, 2000, false));
+		m_retryPolicies.put("test", new RetryPolicy(3, 500, 4000, false));
+		m_retryPolicies.put("buy", new RetryPolicy(3, 500, 4000, true));
+
+		m_circuitBreakers = new HashMap<String, CircuitBreaker>();
+		m_circuitBreakers.put("price", new CircuitBreaker(3, 5000, 60000));
+		m_circuitBreakers.put("test", new CircuitBreaker(5, 10000, 60000));
+		m_circuitBreakers.put("buy", new CircuitBreaker(5, 10000, 60000));
+
+		m_priorities = new HashMap<String, Priority>();
+		m_priorities.put("buy", Priority.INTERACTIVE);
+		m_priorities.put("test", Priority.DEVELOPER);
+		m_scheduler = ApiScheduler.forTransport(transport);
+	}
+
+	/**
+	 * Get the latency of the first successful <code>price</code> call made in
+	 * this process, measured from the call to {@link #post} until the result
+	 * was ready to be passed to the callback. Compare with and without
+	 * {@link #prefetchConnection()} to see the effect of connection warm-up.
+	 * 
+	 * @return Time in milliseconds, or -1 if no price was received yet
+	 */
+	public static long getTimeToFirstPrice() {
+		return s_timeToFirstPrice.get();
+	}
+
+	/**
+	 * Register a listener to receive the {@link CallMetrics} of every call
+	 * made in this process. Calls are only measured while a listener is
+	 * registered.
+	 * 
+	 * @param listener
+	 *            Listener to register, or <code>null</code> to stop measuring
+	 */
+	public static void setMetricsListener(MetricsListener listener) {
+		s_metricsListener = listener;
+	}
+
+	/**
+	 * @return The registered metrics listener, or <code>null</code>
+	 */
+	public static MetricsListener getMetricsListener() {
+		return s_metricsListener;
+	}
+
+	/**
+	 * Replace the recorder of the HTTP exchanges made in this process. By
+	 * default the last {@link FlightRecorder#DEFAULT_CAPACITY} exchanges are
+	 * kept.
+	 * 
+	 * @param recorder
+	 *            Recorder to use, or <code>null</code> to stop recording
+	 */
+	public static void setFlightRecorder(FlightRecorder recorder) {
+		s_flightRecorder = recorder;
+	}
+
+	/**
+	 * @return The recorder of the HTTP exchanges made in this process, or
+	 *         <code>null</code> if recording was stopped
+	 */
+	public static FlightRecorder getFlightRecorder() {
+		return s_flightRecorder;
+	}
+
+	/**
+	 * Resolve the API host and open a connection to it ahead of time, so the
+	 * first call doesn't have to wait for the DNS lookup, the TCP connection
+	 * and the TLS handshake. Returns immediately.
+	 */
+	public void prefetchConnection() {
+		m_scheduler.prefetch(Consts.API_URL);
+	}
+
+	/**
+	 * @return Number of calls made with this poster
+	 */
+	public long getCallCount() {
+		return m_callCount.get();
+	}
+
+	/**
+	 * @return Number of calls that shared the request of an identical call
+	 *         already in flight, instead of making their own
+	 */
+	public long getCoalescedCount() {
+		return m_coalescedCount.get();
+	}
+
+	/**
+	 * Set the retry policy of an API.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param policy
+	 *            Policy to use for all future calls of this API
+	 */
+	public void setRetryPolicy(String api, RetryPolicy policy) {
+		m_retryPolicies.put(api, policy);
+	}
+
+	/**
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @return Retry policy of the API, {@link RetryPolicy#NEVER} by default
+	 */
+	public RetryPolicy getRetryPolicy(String api) {
+		RetryPolicy policy = m_retryPolicies.get(api);
+		return policy != null ? policy : RetryPolicy.NEVER;
+	}
 
-		m_httpClient = new AsyncHttpClient();
-		m_httpClient.setUserAgent("mtkags android sdk/" + Consts.VERSION);
+	/**
+	 * Set the circuit breaker of an API. Breakers should not be shared
+	 * between APIs or posters.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param breaker
+	 *            Breaker to use for all future calls of this API, or
+	 *            <code>null</code> to never stop calls
+	 */
+	public void setCircuitBreaker(String api, CircuitBreaker breaker) {
+		m_circuitBreakers.put(api, breaker);
+	}
+
+	/**
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @return Circuit breaker of the API, or <code>null</code> if it has none
+	 */
+	public CircuitBreaker getCircuitBreaker(String api) {
+		return m_circuitBreakers.get(api);
+	}
+
+	/**
+	 * Set the priority class of an API.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param priority
+	 *            Class of all future calls of this API
+	 */
+	public void setPriority(String api, Priority priority) {
+		m_priorities.put(api, priority);
+	}
+
+	/**
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @return Priority class of the API, {@link Priority#BACKGROUND} by
+	 *         default
+	 */
+	public Priority getPriority(String api) {
+		Priority priority = m_priorities.get(api);
+		return priority != null ? priority : Priority.BACKGROUND;
+	}
+
+	/**
+	 * Allow or forbid the binary format. When allowed, the server is asked to
+	 * answer in CBOR, and requests are sent in CBOR once it does.
+	 * 
+	 * @param enabled
+	 *            <code>false</code> to always use JSON
+	 */
+	public void setBinaryEnabled(boolean enabled) {
+		m_binaryEnabled = enabled;
+		if (!enabled)
+			m_binaryRequests = false;
+	}
+
+	/**
+	 * @return <code>true</code> if the binary format may be used, which is the
+	 *         default
+	 */
+	public boolean isBinaryEnabled() {
+		return m_binaryEnabled;
+	}
+
+	/**
+	 * @return Scheduler of the requests, which holds the queue metrics. It is
+	 *         shared with the other posters using the same transport.
+	 */
+	public ApiScheduler getScheduler() {
+		return m_scheduler;
 	}
 
 	/**
@@ -55,48 +350,184 @@ public class ApiPoster {
 	 * @param callback
 	 *            An implementation of {@link ApiCallback} to call on success or
 	 *            errors
+	 * @return Handle that can be used to cancel the call
+	 */
+	public ApiRequest post(String api, TagDescriptorSource tags,
+			Map<String, Object> params, ApiCallback callback) {
+		// snapshot the tags so they can be encoded in the background
+		TagDescriptorSource tagsCopy = tags.snapshot();
+
+		Map<String, Object> body = new LinkedHashMap<String, Object>();
+		body.put("tags", tagsCopy);
+		if (params != null)
+			body.putAll(new TreeMap<String, Object>(params));
+		return start(api, body, callback);
+	}
+
+	/**
+	 * Call an API that doesn't take a <code>tags</code> parameter and return
+	 * the result. Parameter values may be of any type supported by
+	 * {@link ValueWriter#value(Object)}, and are encoded in the background
+	 * so they must not change after this call.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param params
+	 *            Parameters to pass to the API
+	 * @param callback
+	 *            An implementation of {@link ApiCallback} to call on success or
+	 *            errors
+	 * @return Handle that can be used to cancel the call
 	 */
-	public void post(String api, TagDescriptorList tags,
+	public ApiRequest post(String api, Map<String, Object> params,
+			ApiCallback callback) {
+		Map<String, Object> body = new LinkedHashMap<String, Object>();
+		if (params != null)
+			body.putAll(new TreeMap<String, Object>(params));
+		return start(api, body, callback);
+	}
+
+	/**
+	 * Call an API with tags that were already converted to JSON, as stored by
+	 * {@link OfflineQueue}, which streams them into the request. A stored call
+	 * keeps the idempotency key it was given when first queued.
+	 */
+	ApiRequest postEncoded(String api, JsonWritable tags,
 			Map<String, Object> params, ApiCallback callback) {
+		Map<String, Object> body = new LinkedHashMap<String, Object>();
+		body.put("tags", tags);
+		body.putAll(params);
+		return start(api, body, callback);
+	}
+
+	private ApiRequest start(final String api,
+			final Map<String, Object> body, ApiCallback callback) {
+		if (getRetryPolicy(api).requiresIdempotencyKey()
+				&& !body.containsKey(IDEMPOTENCY_KEY))
+			body.put(IDEMPOTENCY_KEY, UUID.randomUUID().toString());
+
+		m_callCount.incrementAndGet();
+		final long startTime = SystemClock.elapsedRealtime();
+		final ApiCallHandle handle = new ApiCallHandle(this, callback);
+		ApiExecutors.encoder().execute(new Runnable() {
+			@Override
+			public void run() {
+				encodeAndStart(handle, api, body, startTime);
+			}
+		});
+		return handle;
+	}
+
+	private void encodeAndStart(final ApiCallHandle handle, String api,
+			Map<String, Object> body, long startTime) {
+		if (handle.isCancelled())
+			return;
+
+		long encodeStart = System.nanoTime();
+		JsonRequestEntity entity;
 		try {
-			String postData = encodeParams(tags, params);
-			doCall(api, postData, callback);
-		} catch (JSONException e) {
+			entity = new JsonRequestEntity(m_apiKey, body, m_binaryRequests);
+		} catch (final JSONException e) {
 			Log.wtf(Consts.TAG, "Error creating request JSON");
-			callback.onException(e);
-		} catch (UnsupportedEncodingException e) {
-			Log.wtf(Consts.TAG, "Android should always support UTF-8!");
-			callback.onException(e);
+			m_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (!handle.isCancelled())
+						handle.getCallback().onException(e);
+				}
+			});
+			return;
 		}
-	}
 
-	private String encodeParams(TagDescriptorList tags,
-			Map<String, Object> params) throws JSONException {
-		JSONObject json = new JSONObject();
-		json.put("api_key", m_apiKey);
-		json.put("tags", tags.toJson());
+		// streaming callbacks can only share results they can all decode
+		ApiCallback callback = handle.getCallback();
+		String key = api + "/" + entity.getDigest();
+		if (callback instanceof StreamingApiCallback)
+			key += "/" + callback.getClass().getName();
+
+		ApiCall call;
+		synchronized (m_calls) {
+			call = m_calls.get(key);
+			if (call != null) {
+				if (handle.attach(call)) {
+					call.addHandle(handle);
+					m_coalescedCount.incrementAndGet();
+				}
+				return;
+			}
 
-		if (params != null) {
-			for (Iterator<String> i = params.keySet().iterator(); i.hasNext();) {
-				String name = i.next();
-				Object value = params.get(name);
-				json.put(name, value);
+			CallMetrics metrics = null;
+			if (s_metricsListener != null) {
+				metrics = new CallMetrics(api, encodeStart);
+				metrics.onEncoded(entity.getContentLength());
 			}
+
+			call = new ApiCall(this, api, key, getRetryPolicy(api),
+					getCircuitBreaker(api), callback, metrics, m_handler,
+					startTime);
+			if (!handle.attach(call))
+				return;
+			call.addHandle(handle);
+			m_calls.put(key, call);
 		}
+		call.start(entity);
+	}
 
-		return json.toString();
+	/**
+	 * Remove a caller from a call, and abort the call if no callers are left.
+	 */
+	void leave(ApiCall call, ApiCallHandle handle) {
+		synchronized (m_calls) {
+			if (!call.removeHandle(handle))
+				return;
+			if (m_calls.get(call.getKey()) == call)
+				m_calls.remove(call.getKey());
+		}
+		call.cancel();
 	}
 
-	private void doCall(String api, String postData, ApiCallback callback)
-			throws UnsupportedEncodingException {
-		String url = Consts.API_URL + api;
-		StringEntity entity = new StringEntity(postData, "UTF-8");
-		String contentType = "application/json";
+	/**
+	 * Stop sharing a call that is about to report its outcome.
+	 * 
+	 * @return The callers to report the outcome to
+	 */
+	List<ApiCallHandle> complete(ApiCall call) {
+		synchronized (m_calls) {
+			if (m_calls.get(call.getKey()) == call)
+				m_calls.remove(call.getKey());
+			return call.finish();
+		}
+	}
+
+	/**
+	 * The server answered in CBOR, so it can read CBOR requests too.
+	 */
+	void onBinaryResponse() {
+		if (m_binaryEnabled)
+			m_binaryRequests = true;
+	}
+
+	/**
+	 * The server rejected a CBOR request, so only JSON is sent from now on.
+	 */
+	void onBinaryRejected() {
+		m_binaryRequests = false;
+	}
+
+	void recordSuccess(String api, long latency) {
+		if (api.equals("price"))
+			s_timeToFirstPrice.compareAndSet(-1, latency);
+	}
 
-		m_httpClient.post(m_context, url, entity, contentType,
-				new ApiHttpResponseHandler(callback));
+	HttpUriRequest doCall(String api, HttpEntity entity, ApiCall call) {
+		HttpPost request = new HttpPost(Consts.API_URL + api);
+		request.setEntity(entity);
+		if (m_binaryEnabled)
+			request.addHeader("Accept", ACCEPT_BINARY);
 
-		// TODO retry
+		m_scheduler.submit(new ApiHttpRequest(request,
+				new ApiHttpResponseHandler(call), m_handler), getPriority(api));
+		return request;
 	}
 
 }
@@ -0,0 +1,22 @@
+package com.mktags.android.api;
+
+/**
+ * Handle of an API call made by {@link ApiPoster} that allows cancelling it.
+ */
+public interface ApiRequest {
+
+	/**
+	 * Cancel the call. The HTTP request in progress is aborted, pending retries
+	 * are dropped and the callback of the call will not be notified of any
+	 * outcome, even if the response is already on its way. If the request is
+	 * shared with identical calls, it is only aborted once all of them are
+	 * cancelled.
+	 */
+	public void cancel();
+
+	/**
+	 * @return <code>true</code> if the call was cancelled
+	 */
+	public boolean isCancelled();
+
+}
@@ -0,0 +1,288 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * <p>
+ * Schedules the HTTP requests of all {@link ApiPoster} instances sharing an
+ * {@link ApiTransport} by priority before they are passed to it. Every API
+ * belongs to a priority class, and every class has its own limit of requests
+ * running at the same time, besides the overall limit. Whenever a request
+ * completes, the next request sent is the oldest one of the most important
+ * class that is below its limit.
+ * </p>
+ * 
+ * <p>
+ * By default the overall limit matches the threads of
+ * {@link SharedHttpTransport}, and the developer and background classes
+ * together can't fill it, so an interactive request never waits behind them.
+ * Since the threads of the transport are shared by the whole process, so is
+ * its scheduler; see {@link #forTransport(ApiTransport)}.
+ * </p>
+ */
+public class ApiScheduler {
+
+	/**
+	 * Priority classes, most important first.
+	 */
+	public enum Priority {
+		/** Calls the user is waiting for, like <code>buy</code> */
+		INTERACTIVE,
+		/** Developer traffic, like <code>test</code> */
+		DEVELOPER,
+		/** Best-effort calls, like <code>price</code> refreshes */
+		BACKGROUND
+	}
+
+	public static final int DEFAULT_MAX_RUNNING =
+			SharedHttpTransport.DEFAULT_THREADS;
+
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	private ApiTransport m_transport;
+	private int m_maxRunning;
+	private int m_running;
+	private int[] m_limits = new int[PRIORITIES.length];
+	private int[] m_classRunning = new int[PRIORITIES.length];
+	private List<LinkedList<Task>> m_queues;
+	private int[] m_maxQueueDepths = new int[PRIORITIES.length];
+	private LatencyHistogram[] m_waitTimes;
+	private String m_prefetchUrl;
+
+	/**
+	 * Get the scheduler shared by all posters sending through a transport.
+	 * Transports of the SDK keep a single scheduler, other transports get a
+	 * new one on every call.
+	 * 
+	 * @param transport
+	 *            Transport used to send the requests
+	 * @return The scheduler of the transport
+	 */
+	public static ApiScheduler forTransport(ApiTransport transport) {
+		if (transport instanceof HttpClientTransport)
+			return ((HttpClientTransport) transport).getScheduler();
+		return new ApiScheduler(transport);
+	}
+
+	/**
+	 * Constructor. At most {@link #DEFAULT_MAX_RUNNING} requests run at the
+	 * same time, of which at most one is a developer request and at most two
+	 * are background requests.
+	 * 
+	 * @param transport
+	 *            Transport used to send the requests
+	 */
+	public ApiScheduler(ApiTransport transport) {
+		this(transport, DEFAULT_MAX_RUNNING);
+		m_limits[Priority.DEVELOPER.ordinal()] = 1;
+		m_limits[Priority.BACKGROUND.ordinal()] = 2;
+	}
+
+	/**
+	 * Constructor. All classes may use all of the requests until limited with
+	 * {@link #setLimit(Priority, int)}.
+	 * 
+	 * @param transport
+	 *            Transport used to send the requests
+	 * @param maxRunning
+	 *            Maximal number of requests running at the same time
+	 */
+	public ApiScheduler(ApiTransport transport, int maxRunning) {
+		m_transport = transport;
+		m_maxRunning = maxRunning;
+		m_queues = new ArrayList<LinkedList<Task>>(PRIORITIES.length);
+		m_waitTimes = new LatencyHistogram[PRIORITIES.length];
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			m_limits[i] = maxRunning;
+			m_queues.add(new LinkedList<Task>());
+			m_waitTimes[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Limit the number of requests of a class running at the same time.
+	 * 
+	 * @param priority
+	 *            The class
+	 * @param limit
+	 *            Maximal number of running requests of the class
+	 */
+	public synchronized void setLimit(Priority priority, int limit) {
+		m_limits[priority.ordinal()] = limit;
+		dispatch();
+	}
+
+	/**
+	 * @param priority
+	 *            The class
+	 * @return Number of requests of the class waiting to be sent
+	 */
+	public synchronized int getQueueDepth(Priority priority) {
+		return m_queues.get(priority.ordinal()).size();
+	}
+
+	/**
+	 * @param priority
+	 *            The class
+	 * @return Largest number of requests of the class that were waiting at
+	 *         the same time
+	 */
+	public synchronized int getMaxQueueDepth(Priority priority) {
+		return m_maxQueueDepths[priority.ordinal()];
+	}
+
+	/**
+	 * @param priority
+	 *            The class
+	 * @return Number of requests of the class currently running
+	 */
+	public synchronized int getRunning(Priority priority) {
+		return m_classRunning[priority.ordinal()];
+	}
+
+	/**
+	 * @param priority
+	 *            The class
+	 * @return Copy of the histogram of the time requests of the class waited
+	 *         before being sent, in microseconds
+	 */
+	public synchronized LatencyHistogram getWaitTime(Priority priority) {
+		return new LatencyHistogram(m_waitTimes[priority.ordinal()]);
+	}
+
+	/**
+	 * Send a request once its turn comes.
+	 * 
+	 * @param exchange
+	 *            The exchange holding the request
+	 * @param priority
+	 *            Class of the request
+	 */
+	public synchronized void submit(ApiExchange exchange, Priority priority) {
+		int i = priority.ordinal();
+		m_queues.get(i).add(new Task(exchange, priority));
+		m_maxQueueDepths[i] = Math.max(m_maxQueueDepths[i],
+				m_queues.get(i).size());
+		dispatch();
+	}
+
+	/**
+	 * Open a connection ahead of the requests once no request is waiting. The
+	 * connection counts as a background request while it is being opened, so
+	 * it never holds up a more important request.
+	 * 
+	 * @param url
+	 *            URL whose host to connect to
+	 */
+	public synchronized void prefetch(String url) {
+		m_prefetchUrl = url;
+		dispatch();
+	}
+
+	private void dispatch() {
+		while (m_running < m_maxRunning) {
+			Task task = null;
+			for (int i = 0; i < PRIORITIES.length && task == null; i++) {
+				if (m_classRunning[i] < m_limits[i])
+					task = m_queues.get(i).poll();
+			}
+			if (task == null) {
+				if (!startPrefetch())
+					return;
+				continue;
+			}
+
+			// cancelled while waiting, nothing to report
+			if (task.getRequest().isAborted())
+				continue;
+
+			int i = task.m_priority.ordinal();
+			m_waitTimes[i].record((System.nanoTime() - task.m_queued) / 1000);
+			m_classRunning[i]++;
+			m_running++;
+			m_transport.execute(task);
+		}
+	}
+
+	private boolean startPrefetch() {
+		int i = Priority.BACKGROUND.ordinal();
+		if (m_prefetchUrl == null || m_classRunning[i] >= m_limits[i])
+			return false;
+
+		String url = m_prefetchUrl;
+		m_prefetchUrl = null;
+		if (!(m_transport instanceof HttpClientTransport)) {
+			// can't tell when it completes, so it can't hold a slot
+			m_transport.prefetch(url);
+			return true;
+		}
+
+		m_classRunning[i]++;
+		m_running++;
+		((HttpClientTransport) m_transport).prefetch(url, new Runnable() {
+			@Override
+			public void run() {
+				release(Priority.BACKGROUND);
+			}
+		});
+		return true;
+	}
+
+	private synchronized void release(Priority priority) {
+		m_classRunning[priority.ordinal()]--;
+		m_running--;
+		dispatch();
+	}
+
+	/**
+	 * Exchange waiting in a queue, that frees its slot once it completes.
+	 */
+	private class Task implements ApiExchange {
+
+		private ApiExchange m_exchange;
+		private Priority m_priority;
+		private long m_queued;
+		private AtomicBoolean m_released = new AtomicBoolean();
+
+		public Task(ApiExchange exchange, Priority priority) {
+			m_exchange = exchange;
+			m_priority = priority;
+			m_queued = System.nanoTime();
+		}
+
+		@Override
+		public HttpUriRequest getRequest() {
+			return m_exchange.getRequest();
+		}
+
+		@Override
+		public void onResponse(HttpResponse response) throws IOException {
+			// if this throws, the transport calls onFailure which releases
+			m_exchange.onResponse(response);
+			release();
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			try {
+				m_exchange.onFailure(e);
+			} finally {
+				release();
+			}
+		}
+
+		private void release() {
+			if (m_released.compareAndSet(false, true))
+				ApiScheduler.this.release(m_priority);
+		}
+
+	}
+
+}
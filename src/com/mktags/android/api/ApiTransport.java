@@ -0,0 +1,36 @@
+package com.mktags.android.api;
+
+/**
+ * <p>
+ * Transport used by {@link ApiPoster} to send HTTP requests. The default
+ * transport, {@link SharedHttpTransport}, shares a single connection pool and
+ * thread pool across the whole process. {@link AsyncHttpTransport} sends
+ * requests through an existing <code>AsyncHttpClient</code>.
+ * </p>
+ * 
+ * <p>
+ * Implementations must be thread-safe and must never block the calling thread.
+ * </p>
+ */
+public interface ApiTransport {
+
+	/**
+	 * Send a request in the background and report the outcome to the
+	 * exchange.
+	 * 
+	 * @param exchange
+	 *            The exchange holding the request to send
+	 */
+	public void execute(ApiExchange exchange);
+
+	/**
+	 * Prepare for requests to the given URL ahead of time, by resolving its
+	 * host and opening a connection to it in the background. Transports that
+	 * can't do that may just ignore the call.
+	 * 
+	 * @param url
+	 *            URL future requests will be sent to
+	 */
+	public void prefetch(String url);
+
+}
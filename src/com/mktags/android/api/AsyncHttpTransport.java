@@ -0,0 +1,66 @@
+package com.mktags.android.api;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.mktags.android.Consts;
+
+/**
+ * <p>
+ * {@link ApiTransport} that sends requests through an existing
+ * {@link AsyncHttpClient}, keeping its configuration like headers, cookies and
+ * SSL settings.
+ * </p>
+ * 
+ * <p>
+ * Requests are executed with the {@link HttpClient} and {@link HttpContext} of
+ * the {@link AsyncHttpClient}, but on a thread pool of this transport, as the
+ * response handlers of <code>AsyncHttpClient</code> always read the whole
+ * response into memory.
+ * </p>
+ */
+public class AsyncHttpTransport extends HttpClientTransport {
+
+	private AsyncHttpClient m_client;
+	private ExecutorService m_executor;
+
+	/**
+	 * Constructor. Creates a new {@link AsyncHttpClient}.
+	 */
+	public AsyncHttpTransport() {
+		this(new AsyncHttpClient());
+		m_client.setUserAgent("mtkags android sdk/" + Consts.VERSION);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            Client to send requests through
+	 */
+	public AsyncHttpTransport(AsyncHttpClient client) {
+		m_client = client;
+		m_executor = ApiExecutors
+				.newNetworkExecutor(SharedHttpTransport.DEFAULT_THREADS);
+	}
+
+	@Override
+	protected HttpClient getHttpClient() {
+		return m_client.getHttpClient();
+	}
+
+	@Override
+	protected HttpContext getHttpContext() {
+		return m_client.getHttpContext();
+	}
+
+	@Override
+	protected Executor getExecutor() {
+		return m_executor;
+	}
+
+}
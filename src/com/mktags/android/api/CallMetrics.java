@@ -0,0 +1,159 @@
+package com.mktags.android.api;
+
+/**
+ * <p>
+ * Measurements of a single API call, as passed to a {@link MetricsListener}.
+ * A call shared by several identical calls is measured once.
+ * </p>
+ * 
+ * <p>
+ * All durations are in microseconds, and are -1 if the call never got to the
+ * measured stage. The first byte and the parse times are of the last attempt.
+ * </p>
+ */
+public class CallMetrics {
+
+	/**
+	 * Final outcome of a call, matching the {@link ApiCallback} method that
+	 * was called.
+	 */
+	public enum Outcome {
+		SUCCESS, USER_ERROR, DEVELOPER_ERROR, SERVER_ERROR, EXCEPTION
+	}
+
+	private String m_api;
+	private long m_startTime;
+	private long m_attemptTime;
+	private long m_firstByteTime;
+
+	private long m_encodeTime = -1;
+	private long m_firstByteLatency = -1;
+	private long m_parseTime = -1;
+	private long m_totalTime = -1;
+	private long m_requestBytes = -1;
+	private long m_responseBytes = -1;
+	private int m_attempts;
+	private int m_callers;
+	private Outcome m_outcome;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param startTime
+	 *            {@link System#nanoTime()} when encoding the call started
+	 */
+	CallMetrics(String api, long startTime) {
+		m_api = api;
+		m_startTime = startTime;
+	}
+
+	void onEncoded(long requestBytes) {
+		m_encodeTime = micros(m_startTime, System.nanoTime());
+		m_requestBytes = requestBytes;
+	}
+
+	void onAttempt() {
+		m_attempts++;
+		m_attemptTime = System.nanoTime();
+		m_firstByteLatency = -1;
+		m_parseTime = -1;
+		m_responseBytes = -1;
+	}
+
+	void onFirstByte() {
+		m_firstByteTime = System.nanoTime();
+		m_firstByteLatency = micros(m_attemptTime, m_firstByteTime);
+	}
+
+	void onParsed(long responseBytes) {
+		m_parseTime = micros(m_firstByteTime, System.nanoTime());
+		m_responseBytes = responseBytes;
+	}
+
+	void onOutcome(Outcome outcome, int callers) {
+		m_totalTime = micros(m_startTime, System.nanoTime());
+		m_outcome = outcome;
+		m_callers = callers;
+	}
+
+	private static long micros(long start, long end) {
+		return (end - start) / 1000;
+	}
+
+	/**
+	 * @return API name without the <code>/api/</code> prefix
+	 */
+	public String getApi() {
+		return m_api;
+	}
+
+	/**
+	 * @return Time it took to encode the request
+	 */
+	public long getEncodeTime() {
+		return m_encodeTime;
+	}
+
+	/**
+	 * @return Time from sending the request until the response headers
+	 *         arrived
+	 */
+	public long getFirstByteLatency() {
+		return m_firstByteLatency;
+	}
+
+	/**
+	 * @return Time it took to read and parse the response
+	 */
+	public long getParseTime() {
+		return m_parseTime;
+	}
+
+	/**
+	 * @return Time from the start of encoding until the outcome was reported,
+	 *         including all retries
+	 */
+	public long getTotalTime() {
+		return m_totalTime;
+	}
+
+	/**
+	 * @return Size of the request body in bytes
+	 */
+	public long getRequestBytes() {
+		return m_requestBytes;
+	}
+
+	/**
+	 * @return Size of the response body in bytes after decompression, or -1
+	 *         if no response was read
+	 */
+	public long getResponseBytes() {
+		return m_responseBytes;
+	}
+
+	/**
+	 * @return Number of attempts that were retried
+	 */
+	public int getRetries() {
+		return Math.max(0, m_attempts - 1);
+	}
+
+	/**
+	 * @return Number of identical calls that shared this call and were
+	 *         reported the outcome
+	 */
+	public int getCallers() {
+		return m_callers;
+	}
+
+	/**
+	 * @return Final outcome of the call
+	 */
+	public Outcome getOutcome() {
+		return m_outcome;
+	}
+
+}
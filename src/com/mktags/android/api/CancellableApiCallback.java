@@ -0,0 +1,19 @@
+package com.mktags.android.api;
+
+/**
+ * Callback interface for API calls that need to know when they are cancelled,
+ * for example to dismiss a dialog shown while the call is in progress. No
+ * other method is called once a call is cancelled.
+ */
+public interface CancellableApiCallback extends ApiCallback {
+
+	/**
+	 * Called once when the call is cancelled with {@link ApiRequest#cancel()},
+	 * by {@link RequestScope#cancelAll()} or by a newer call superseding it.
+	 * Called on the thread that cancelled the call, which may not be the
+	 * thread of the other callback methods. A call cancelled just as it
+	 * completed may get this call after its outcome.
+	 */
+	public void onCancelled();
+
+}
@@ -0,0 +1,143 @@
+package com.mktags.android.api;
+
+import android.os.SystemClock;
+
+/**
+ * <p>
+ * Circuit breaker of a single API, that stops calls to the server while it is
+ * failing. Overloaded servers get time to recover instead of being flooded
+ * with retries, and users get an error right away instead of waiting for
+ * requests that are bound to fail.
+ * </p>
+ * 
+ * <ul>
+ * <li><b>Closed</b> - Calls are made normally. After a number of consecutive
+ * failures the circuit opens.</li>
+ * <li><b>Open</b> - Calls fail right away without a request. After the open
+ * duration, the circuit becomes half-open.</li>
+ * <li><b>Half-open</b> - A single probe call is let through. If it succeeds the
+ * circuit closes, otherwise it opens again for twice as long, up to the
+ * maximal open duration.</li>
+ * </ul>
+ * 
+ * <p>
+ * Only server errors and connection problems count as failures. Errors that
+ * are the user's or the developer's mean the server is healthy.
+ * </p>
+ */
+public class CircuitBreaker {
+
+	/**
+	 * State of the circuit.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private int m_failureThreshold;
+	private long m_openDuration;
+	private long m_maxOpenDuration;
+
+	private State m_state = State.CLOSED;
+	private int m_failures;
+	private long m_currentOpenDuration;
+	private long m_openedAt;
+	private long m_probeStartedAt = -1;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param failureThreshold
+	 *            Number of consecutive failures that open the circuit
+	 * @param openDuration
+	 *            Time in milliseconds the circuit stays open before a probe
+	 *            call is let through
+	 * @param maxOpenDuration
+	 *            Maximal time in milliseconds the circuit stays open after
+	 *            consecutive failed probes
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration,
+			long maxOpenDuration) {
+		m_failureThreshold = failureThreshold;
+		m_openDuration = openDuration;
+		m_maxOpenDuration = maxOpenDuration;
+		m_currentOpenDuration = openDuration;
+	}
+
+	/**
+	 * @return Current state of the circuit
+	 */
+	public synchronized State getState() {
+		if (m_state == State.OPEN && openExpired())
+			return State.HALF_OPEN;
+		return m_state;
+	}
+
+	/**
+	 * Check if a request may be sent, and if so count it as the probe when
+	 * the circuit is half-open.
+	 * 
+	 * @return <code>true</code> if the request may be sent
+	 */
+	public synchronized boolean allowRequest() {
+		switch (m_state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (!openExpired())
+				return false;
+			m_state = State.HALF_OPEN;
+			return startProbe();
+		default:
+			// a probe that was cancelled never reports back
+			if (m_probeStartedAt >= 0
+					&& now() - m_probeStartedAt < m_currentOpenDuration)
+				return false;
+			return startProbe();
+		}
+	}
+
+	/**
+	 * Report that a request reached a healthy server.
+	 */
+	public synchronized void onSuccess() {
+		m_state = State.CLOSED;
+		m_failures = 0;
+		m_currentOpenDuration = m_openDuration;
+		m_probeStartedAt = -1;
+	}
+
+	/**
+	 * Report that a request failed due to the server or the connection.
+	 */
+	public synchronized void onFailure() {
+		if (m_state == State.HALF_OPEN) {
+			m_currentOpenDuration = Math.min(m_currentOpenDuration * 2,
+					m_maxOpenDuration);
+			open();
+		} else if (m_state == State.CLOSED
+				&& ++m_failures >= m_failureThreshold) {
+			open();
+		}
+	}
+
+	private void open() {
+		m_state = State.OPEN;
+		m_openedAt = now();
+		m_probeStartedAt = -1;
+	}
+
+	private boolean startProbe() {
+		m_probeStartedAt = now();
+		return true;
+	}
+
+	private boolean openExpired() {
+		return now() - m_openedAt >= m_currentOpenDuration;
+	}
+
+	private static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.mktags.android.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+
+	private long m_count;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param in
+	 *            Stream to read from
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return Number of bytes read so far
+	 */
+	public long getCount() {
+		return m_count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0)
+			m_count++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int n = super.read(buffer, offset, length);
+		if (n > 0)
+			m_count += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		m_count += skipped;
+		return skipped;
+	}
+
+}
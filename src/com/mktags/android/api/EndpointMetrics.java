@@ -0,0 +1,166 @@
+package com.mktags.android.api;
+
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mktags.android.api.CallMetrics.Outcome;
+
+/**
+ * Aggregated {@link CallMetrics} of all the calls of a single API, as kept by
+ * {@link MetricsAggregator}. Not thread-safe.
+ */
+public class EndpointMetrics {
+
+	private static final Outcome[] OUTCOMES = Outcome.values();
+
+	private long m_calls;
+	private long[] m_outcomes = new long[OUTCOMES.length];
+	private long m_retries;
+	private long m_requestBytes;
+	private long m_responseBytes;
+	private LatencyHistogram m_encodeTime;
+	private LatencyHistogram m_firstByteLatency;
+	private LatencyHistogram m_parseTime;
+	private LatencyHistogram m_totalTime;
+
+	/**
+	 * Constructor.
+	 */
+	public EndpointMetrics() {
+		m_encodeTime = new LatencyHistogram();
+		m_firstByteLatency = new LatencyHistogram();
+		m_parseTime = new LatencyHistogram();
+		m_totalTime = new LatencyHistogram();
+	}
+
+	/**
+	 * Copy constructor.
+	 * 
+	 * @param other
+	 *            Metrics to copy
+	 */
+	public EndpointMetrics(EndpointMetrics other) {
+		m_calls = other.m_calls;
+		System.arraycopy(other.m_outcomes, 0, m_outcomes, 0,
+				m_outcomes.length);
+		m_retries = other.m_retries;
+		m_requestBytes = other.m_requestBytes;
+		m_responseBytes = other.m_responseBytes;
+		m_encodeTime = new LatencyHistogram(other.m_encodeTime);
+		m_firstByteLatency = new LatencyHistogram(other.m_firstByteLatency);
+		m_parseTime = new LatencyHistogram(other.m_parseTime);
+		m_totalTime = new LatencyHistogram(other.m_totalTime);
+	}
+
+	/**
+	 * Add the measurements of a call.
+	 * 
+	 * @param metrics
+	 *            Measurements of the call
+	 */
+	public void record(CallMetrics metrics) {
+		m_calls++;
+		m_outcomes[metrics.getOutcome().ordinal()]++;
+		m_retries += metrics.getRetries();
+		m_requestBytes += Math.max(0, metrics.getRequestBytes());
+		m_responseBytes += Math.max(0, metrics.getResponseBytes());
+		m_encodeTime.record(metrics.getEncodeTime());
+		m_firstByteLatency.record(metrics.getFirstByteLatency());
+		m_parseTime.record(metrics.getParseTime());
+		m_totalTime.record(metrics.getTotalTime());
+	}
+
+	/**
+	 * @return Number of calls
+	 */
+	public long getCalls() {
+		return m_calls;
+	}
+
+	/**
+	 * @param outcome
+	 *            Outcome to count
+	 * @return Number of calls with the outcome
+	 */
+	public long getOutcomeCount(Outcome outcome) {
+		return m_outcomes[outcome.ordinal()];
+	}
+
+	/**
+	 * @return Number of retried attempts of all calls
+	 */
+	public long getRetries() {
+		return m_retries;
+	}
+
+	/**
+	 * @return Total size of the request bodies in bytes
+	 */
+	public long getRequestBytes() {
+		return m_requestBytes;
+	}
+
+	/**
+	 * @return Total size of the response bodies in bytes
+	 */
+	public long getResponseBytes() {
+		return m_responseBytes;
+	}
+
+	/**
+	 * @return Histogram of {@link CallMetrics#getEncodeTime()}
+	 */
+	public LatencyHistogram getEncodeTime() {
+		return m_encodeTime;
+	}
+
+	/**
+	 * @return Histogram of {@link CallMetrics#getFirstByteLatency()}
+	 */
+	public LatencyHistogram getFirstByteLatency() {
+		return m_firstByteLatency;
+	}
+
+	/**
+	 * @return Histogram of {@link CallMetrics#getParseTime()}
+	 */
+	public LatencyHistogram getParseTime() {
+		return m_parseTime;
+	}
+
+	/**
+	 * @return Histogram of {@link CallMetrics#getTotalTime()}
+	 */
+	public LatencyHistogram getTotalTime() {
+		return m_totalTime;
+	}
+
+	/**
+	 * Convert the metrics into JSON.
+	 * 
+	 * @return JSON object with all the metrics
+	 * @throws JSONException
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject outcomes = new JSONObject();
+		for (Outcome outcome : OUTCOMES) {
+			outcomes.put(outcome.name().toLowerCase(Locale.US),
+					getOutcomeCount(outcome));
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("calls", m_calls);
+		json.put("outcomes", outcomes);
+		json.put("retries", m_retries);
+		json.put("request_bytes", m_requestBytes);
+		json.put("response_bytes", m_responseBytes);
+		json.put("encode_time", m_encodeTime.toJson());
+		json.put("first_byte_latency", m_firstByteLatency.toJson());
+		json.put("parse_time", m_parseTime.toJson());
+		json.put("total_time", m_totalTime.toJson());
+		return json;
+	}
+
+}
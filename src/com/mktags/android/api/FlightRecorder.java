@@ -0,0 +1,139 @@
+package com.mktags.android.api;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mktags.android.api.CallMetrics.Outcome;
+
+/**
+ * <p>
+ * Keeps the last few HTTP exchanges made by {@link ApiPoster}, to help
+ * investigate failures reported by users after the fact. Every attempt of a
+ * call is recorded, including attempts that were retried.
+ * </p>
+ * 
+ * <p>
+ * The buffer is allocated once. Recording an exchange only copies numbers and
+ * references to strings that already exist into it, and takes no locks.
+ * Every slot carries a sequence stamp, so {@link #toJson()} skips records that
+ * are being overwritten while it reads them.
+ * </p>
+ */
+public class FlightRecorder {
+
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private final int m_capacity;
+	private final AtomicLong m_next = new AtomicLong();
+	private final AtomicLongArray m_stamps;
+
+	private final AtomicReferenceArray<String> m_apis;
+	private final AtomicIntegerArray m_attempts;
+	private final AtomicLongArray m_startTimes;
+	private final AtomicLongArray m_endTimes;
+	private final AtomicIntegerArray m_statuses;
+	private final AtomicReferenceArray<Outcome> m_outcomes;
+	private final AtomicReferenceArray<String> m_errors;
+	private final AtomicLongArray m_payloadSizes;
+	private final AtomicReferenceArray<String> m_payloadHashes;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            Number of exchanges to keep
+	 */
+	public FlightRecorder(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+
+		m_capacity = capacity;
+		m_stamps = new AtomicLongArray(capacity);
+		m_apis = new AtomicReferenceArray<String>(capacity);
+		m_attempts = new AtomicIntegerArray(capacity);
+		m_startTimes = new AtomicLongArray(capacity);
+		m_endTimes = new AtomicLongArray(capacity);
+		m_statuses = new AtomicIntegerArray(capacity);
+		m_outcomes = new AtomicReferenceArray<Outcome>(capacity);
+		m_errors = new AtomicReferenceArray<String>(capacity);
+		m_payloadSizes = new AtomicLongArray(capacity);
+		m_payloadHashes = new AtomicReferenceArray<String>(capacity);
+	}
+
+	/**
+	 * @return Number of exchanges kept
+	 */
+	public int getCapacity() {
+		return m_capacity;
+	}
+
+	/**
+	 * Record the outcome of an attempt.
+	 * 
+	 * @param call
+	 *            The call that made the attempt
+	 * @param outcome
+	 *            Outcome of the attempt
+	 * @param error
+	 *            Error code or exception class, or <code>null</code>
+	 */
+	void record(ApiCall call, Outcome outcome, String error) {
+		long seq = m_next.getAndIncrement();
+		int slot = (int) (seq % m_capacity);
+
+		// odd stamps mark slots that are being written
+		m_stamps.set(slot, 2 * seq + 1);
+		m_apis.set(slot, call.getApi());
+		m_attempts.set(slot, call.getAttempts());
+		m_startTimes.set(slot, call.getAttemptTime());
+		m_endTimes.set(slot, System.currentTimeMillis());
+		m_statuses.set(slot, call.getStatus());
+		m_outcomes.set(slot, outcome);
+		m_errors.set(slot, error);
+		m_payloadSizes.set(slot, call.getEntity().getContentLength());
+		m_payloadHashes.set(slot, call.getEntity().getDigest());
+		m_stamps.set(slot, 2 * seq + 2);
+	}
+
+	/**
+	 * Dump the recorded exchanges, oldest first. Times are in milliseconds
+	 * since the epoch, and the status is -1 if no response was received.
+	 * 
+	 * @return JSON array with an object for every exchange
+	 * @throws JSONException
+	 */
+	public JSONArray toJson() throws JSONException {
+		JSONArray json = new JSONArray();
+		long end = m_next.get();
+		for (long seq = Math.max(0, end - m_capacity); seq < end; seq++) {
+			int slot = (int) (seq % m_capacity);
+			long stamp = 2 * seq + 2;
+			if (m_stamps.get(slot) != stamp)
+				continue;
+
+			JSONObject record = new JSONObject();
+			record.put("api", m_apis.get(slot));
+			record.put("attempt", m_attempts.get(slot));
+			record.put("start", m_startTimes.get(slot));
+			record.put("end", m_endTimes.get(slot));
+			record.put("status", m_statuses.get(slot));
+			record.put("outcome", m_outcomes.get(slot).name());
+			record.putOpt("error", m_errors.get(slot));
+			record.put("payload_size", m_payloadSizes.get(slot));
+			record.put("payload_hash", m_payloadHashes.get(slot));
+
+			// overwritten while reading
+			if (m_stamps.get(slot) != stamp)
+				continue;
+			json.put(record);
+		}
+		return json;
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+import com.mktags.android.Consts;
+
+/**
+ * Base of transports that execute requests with an Apache {@link HttpClient}
+ * on an {@link Executor}.
+ */
+abstract class HttpClientTransport implements ApiTransport {
+
+	private static final long CONNECTION_TIMEOUT = 10 * 1000;
+	private static final long KEEP_ALIVE = 30 * 1000;
+
+	private ApiScheduler m_scheduler;
+
+	/**
+	 * @return Client used to execute requests
+	 */
+	protected abstract HttpClient getHttpClient();
+
+	/**
+	 * @return Context used to execute requests, or <code>null</code>
+	 */
+	protected abstract HttpContext getHttpContext();
+
+	/**
+	 * @return Executor running the requests
+	 */
+	protected abstract Executor getExecutor();
+
+	/**
+	 * @return Scheduler shared by all posters sending through this transport
+	 */
+	synchronized ApiScheduler getScheduler() {
+		if (m_scheduler == null)
+			m_scheduler = newScheduler();
+		return m_scheduler;
+	}
+
+	/**
+	 * @return New scheduler matching the threads of this transport
+	 */
+	ApiScheduler newScheduler() {
+		return new ApiScheduler(this);
+	}
+
+	@Override
+	public void execute(final ApiExchange exchange) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					getHttpClient().execute(exchange.getRequest(),
+							new ExchangeResponseHandler(exchange),
+							getHttpContext());
+				} catch (IOException e) {
+					exchange.onFailure(e);
+				} catch (RuntimeException e) {
+					exchange.onFailure(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Open a connection to the host of the URL and put it in the connection
+	 * pool, unless the pool already has one. For HTTPS, this also performs the
+	 * TLS handshake. Clients that don't expose their connection pool only get
+	 * the host resolved.
+	 */
+	@Override
+	public void prefetch(String url) {
+		prefetch(url, null);
+	}
+
+	/**
+	 * Same as {@link #prefetch(String)}, but tells when the connection is
+	 * ready or failed to open.
+	 * 
+	 * @param url
+	 *            URL whose host to connect to
+	 * @param done
+	 *            Run on the transport thread once done, or <code>null</code>
+	 */
+	void prefetch(final String url, final Runnable done) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					URI uri = URI.create(url);
+					HttpClient client = getHttpClient();
+					if (client instanceof AbstractHttpClient)
+						openConnection((AbstractHttpClient) client, uri);
+					else
+						InetAddress.getByName(uri.getHost());
+				} catch (Exception e) {
+					Log.i(Consts.TAG, "Failed to prefetch connection", e);
+				} finally {
+					if (done != null)
+						done.run();
+				}
+			}
+		});
+	}
+
+	private void openConnection(AbstractHttpClient client, URI uri)
+			throws IOException, HttpException, InterruptedException {
+		HttpHost target = new HttpHost(uri.getHost(), uri.getPort(),
+				uri.getScheme());
+		HttpContext context = getHttpContext();
+		if (context == null)
+			context = new BasicHttpContext();
+
+		// use the same route the actual requests will use
+		HttpRoute route = client.getRoutePlanner().determineRoute(target,
+				new HttpPost(uri), context);
+
+		ClientConnectionManager manager = client.getConnectionManager();
+		ManagedClientConnection connection = manager.requestConnection(route,
+				null).getConnection(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+		try {
+			if (!connection.isOpen())
+				connection.open(route, context, client.getParams());
+			connection.markReusable();
+		} finally {
+			manager.releaseConnection(connection, KEEP_ALIVE,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static class ExchangeResponseHandler implements
+			ResponseHandler<Void> {
+
+		private ApiExchange m_exchange;
+
+		public ExchangeResponseHandler(ApiExchange exchange) {
+			m_exchange = exchange;
+		}
+
+		@Override
+		public Void handleResponse(HttpResponse response) throws IOException {
+			m_exchange.onResponse(response);
+			return null;
+		}
+
+	}
+
+}
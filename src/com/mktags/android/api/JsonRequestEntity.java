@@ -0,0 +1,209 @@
+package com.mktags.android.api;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONException;
+
+import com.mktags.android.json.CborStreamWriter;
+import com.mktags.android.json.JsonStreamWriter;
+import com.mktags.android.json.ValueWriter;
+
+/**
+ * <p>
+ * Request entity that writes the JSON of an API call straight into the HTTP
+ * output stream. Tag descriptors are converted one at a time, so the memory
+ * used doesn't grow with the number of tags in the call.
+ * </p>
+ * 
+ * <p>
+ * The entity is written once on construction into a counting stream to find
+ * its length and digest and to report encoding errors early, and then again
+ * for every attempt to send it.
+ * </p>
+ * 
+ * <p>
+ * A binary entity is written as CBOR instead of JSON, with the same structure.
+ * Raw NDEF payloads are then sent as byte strings rather than Base64, which
+ * would make them a third larger.
+ * </p>
+ */
+class JsonRequestEntity extends AbstractHttpEntity {
+
+	static final String CBOR_TYPE = "application/cbor";
+
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
+
+	private String m_apiKey;
+	private Map<String, Object> m_body;
+	private boolean m_binary;
+	private long m_length;
+	private String m_digest;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param apiKey
+	 *            The API key of your account
+	 * @param body
+	 *            Parameters of the call, in the order they should be written.
+	 *            Values are written with {@link ValueWriter#value(Object)}
+	 *            and must not change after the entity is created.
+	 * @param binary
+	 *            <code>true</code> to write the request as CBOR
+	 * @throws JSONException
+	 *             In case the request can't be converted to JSON
+	 */
+	public JsonRequestEntity(String apiKey, Map<String, Object> body,
+			boolean binary) throws JSONException {
+		m_apiKey = apiKey;
+		m_body = body;
+		m_binary = binary;
+
+		if (binary)
+			setContentType(CBOR_TYPE);
+		else
+			setContentType("application/json; charset=" + CHARSET);
+
+		FingerprintOutputStream counter = new FingerprintOutputStream();
+		try {
+			writeTo(counter);
+		} catch (IOException e) {
+			throw new JSONException(e.toString());
+		} catch (IllegalArgumentException e) {
+			throw new JSONException(e.toString());
+		} catch (IllegalStateException e) {
+			throw new JSONException(e.toString());
+		}
+		m_length = counter.getCount();
+		m_digest = counter.getDigest();
+	}
+
+	/**
+	 * @return <code>true</code> if the request is written as CBOR
+	 */
+	public boolean isBinary() {
+		return m_binary;
+	}
+
+	/**
+	 * @return Entity with the same request written as JSON, for servers that
+	 *         don't accept CBOR
+	 * @throws JSONException
+	 *             In case the request can't be converted to JSON
+	 */
+	public JsonRequestEntity toJsonEntity() throws JSONException {
+		if (!m_binary)
+			return this;
+		return new JsonRequestEntity(m_apiKey, m_body, false);
+	}
+
+	/**
+	 * @return SHA-1 digest of the content in hex, identifying identical
+	 *         requests
+	 */
+	public String getDigest() {
+		return m_digest;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return m_length;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) m_length);
+		writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		ValueWriter writer;
+		if (m_binary) {
+			writer = new CborStreamWriter(new BufferedOutputStream(out,
+					BUFFER_SIZE));
+		} else {
+			writer = new JsonStreamWriter(new BufferedWriter(
+					new OutputStreamWriter(out, CHARSET), BUFFER_SIZE));
+		}
+
+		writer.beginObject();
+		writer.name("api_key").value(m_apiKey);
+		for (Iterator<String> i = m_body.keySet().iterator(); i.hasNext();) {
+			String name = i.next();
+			writer.name(name).value(m_body.get(name));
+		}
+		writer.endObject();
+		writer.flush();
+	}
+
+	/**
+	 * Counts and hashes the bytes written to it.
+	 */
+	private static class FingerprintOutputStream extends OutputStream {
+
+		private long m_count;
+		private MessageDigest m_digest;
+
+		public FingerprintOutputStream() {
+			try {
+				m_digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(
+						"Android should always support SHA-1!", e);
+			}
+		}
+
+		public long getCount() {
+			return m_count;
+		}
+
+		public String getDigest() {
+			byte[] digest = m_digest.digest();
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		}
+
+		@Override
+		public void write(int b) {
+			m_count++;
+			m_digest.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			m_count += len;
+			m_digest.update(b, off, len);
+		}
+
+	}
+
+}
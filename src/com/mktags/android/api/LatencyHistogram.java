@@ -0,0 +1,126 @@
+package com.mktags.android.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of durations in microseconds, with fixed buckets growing roughly
+ * exponentially from 1 millisecond up to 10 seconds. Not thread-safe.
+ */
+public class LatencyHistogram {
+
+	private static final long[] BOUNDS = { 1000, 2000, 5000, 10000, 20000,
+			50000, 100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000 };
+
+	private long[] m_counts = new long[BOUNDS.length + 1];
+	private long m_count;
+	private long m_sum;
+	private long m_max;
+
+	/**
+	 * Constructor.
+	 */
+	public LatencyHistogram() {
+	}
+
+	/**
+	 * Copy constructor.
+	 * 
+	 * @param other
+	 *            Histogram to copy
+	 */
+	public LatencyHistogram(LatencyHistogram other) {
+		System.arraycopy(other.m_counts, 0, m_counts, 0, m_counts.length);
+		m_count = other.m_count;
+		m_sum = other.m_sum;
+		m_max = other.m_max;
+	}
+
+	/**
+	 * Add a duration. Negative durations, of stages that were never reached,
+	 * are ignored.
+	 * 
+	 * @param micros
+	 *            Duration in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			return;
+
+		int i = 0;
+		while (i < BOUNDS.length && micros > BOUNDS[i])
+			i++;
+		m_counts[i]++;
+		m_count++;
+		m_sum += micros;
+		m_max = Math.max(m_max, micros);
+	}
+
+	/**
+	 * @return Number of recorded durations
+	 */
+	public long getCount() {
+		return m_count;
+	}
+
+	/**
+	 * @return Mean of the recorded durations, or 0 if there are none
+	 */
+	public long getMean() {
+		return m_count > 0 ? m_sum / m_count : 0;
+	}
+
+	/**
+	 * @return Longest recorded duration
+	 */
+	public long getMax() {
+		return m_max;
+	}
+
+	/**
+	 * Estimate a percentile by the upper bound of the bucket it falls in.
+	 * 
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Estimated duration, or 0 if there are no durations
+	 */
+	public long getPercentile(double percentile) {
+		long rank = (long) Math.ceil(m_count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += m_counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min(BOUNDS[i], m_max);
+		}
+		return m_max;
+	}
+
+	/**
+	 * Convert the histogram into JSON, with the upper bound of every bucket
+	 * and the number of durations in it. The last bucket has no bound.
+	 * 
+	 * @return JSON object with the histogram
+	 * @throws JSONException
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONArray bounds = new JSONArray();
+		for (long bound : BOUNDS)
+			bounds.put(bound);
+		JSONArray counts = new JSONArray();
+		for (long count : m_counts)
+			counts.put(count);
+
+		JSONObject json = new JSONObject();
+		json.put("count", m_count);
+		json.put("mean", getMean());
+		json.put("max", m_max);
+		json.put("p50", getPercentile(50));
+		json.put("p90", getPercentile(90));
+		json.put("p99", getPercentile(99));
+		json.put("bounds", bounds);
+		json.put("counts", counts);
+		return json;
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.mktags.android.api;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * {@link MetricsListener} that aggregates the metrics of all calls by API, for
+ * shipping to your own telemetry. Take a {@link #snapshot()} periodically and
+ * {@link #reset()} after it was shipped.
+ * </p>
+ * 
+ * <pre>
+ * <code>
+ * MetricsAggregator aggregator = new MetricsAggregator();
+ * ApiPoster.setMetricsListener(aggregator);
+ * ...
+ * JSONObject json = aggregator.toJson();
+ * </code>
+ * </pre>
+ */
+public class MetricsAggregator implements MetricsListener {
+
+	private Map<String, EndpointMetrics> m_endpoints =
+			new HashMap<String, EndpointMetrics>();
+
+	@Override
+	public synchronized void onCallMetrics(CallMetrics metrics) {
+		EndpointMetrics endpoint = m_endpoints.get(metrics.getApi());
+		if (endpoint == null) {
+			endpoint = new EndpointMetrics();
+			m_endpoints.put(metrics.getApi(), endpoint);
+		}
+		endpoint.record(metrics);
+	}
+
+	/**
+	 * @return Copy of the metrics of every API that was called, by API name
+	 */
+	public synchronized Map<String, EndpointMetrics> snapshot() {
+		Map<String, EndpointMetrics> snapshot =
+				new HashMap<String, EndpointMetrics>();
+		for (Iterator<String> i = m_endpoints.keySet().iterator(); i.hasNext();) {
+			String api = i.next();
+			snapshot.put(api, new EndpointMetrics(m_endpoints.get(api)));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Drop all the aggregated metrics.
+	 */
+	public synchronized void reset() {
+		m_endpoints.clear();
+	}
+
+	/**
+	 * Convert a snapshot of the metrics into JSON.
+	 * 
+	 * @return JSON object with the metrics of every API by API name
+	 * @throws JSONException
+	 */
+	public JSONObject toJson() throws JSONException {
+		Map<String, EndpointMetrics> snapshot = snapshot();
+		JSONObject json = new JSONObject();
+		for (Iterator<String> i = snapshot.keySet().iterator(); i.hasNext();) {
+			String api = i.next();
+			json.put(api, snapshot.get(api).toJson());
+		}
+		return json;
+	}
+
+}
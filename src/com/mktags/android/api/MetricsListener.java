@@ -0,0 +1,20 @@
+package com.mktags.android.api;
+
+/**
+ * Receives the {@link CallMetrics} of every API call. Register with
+ * {@link ApiPoster#setMetricsListener(MetricsListener)}.
+ * 
+ * @see MetricsAggregator
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called on the callback's thread right after the outcome of a call was
+	 * reported. Cancelled calls are not reported.
+	 * 
+	 * @param metrics
+	 *            Measurements of the call
+	 */
+	public void onCallMetrics(CallMetrics metrics);
+
+}
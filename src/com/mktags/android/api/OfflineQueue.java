@@ -0,0 +1,586 @@
+package com.mktags.android.api;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.Manifest.permission;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.util.Log;
+
+import com.mktags.android.Consts;
+import com.mktags.android.Mktags;
+import com.mktags.android.json.JsonStreamReader;
+import com.mktags.android.json.JsonStreamWriter;
+import com.mktags.android.json.JsonWritable;
+import com.mktags.android.json.ValueReader;
+import com.mktags.android.json.ValueWriter;
+import com.mktags.android.tags.TagDescriptorSource;
+
+/**
+ * <p>
+ * Durable queue of API calls made while the device is offline. Every queued
+ * call is stored as a file in the app's private storage, so it survives the
+ * app being killed, and is replayed in the order it was queued as soon as the
+ * device is connected again.
+ * </p>
+ * 
+ * <p>
+ * Callbacks can't be stored, so the results of replayed calls are passed to a
+ * {@link Listener} instead. Calls that fail due to connection or server
+ * problems stay in the queue and are replayed on the next connectivity change
+ * or call to {@link #flush()}. Calls that are rejected by the API are dropped.
+ * Calls of APIs that require an idempotency key get it when they are queued,
+ * so a call is never executed twice even if the app is killed while replaying
+ * it.
+ * </p>
+ * 
+ * <p>
+ * The queue requires the <code>ACCESS_NETWORK_STATE</code> permission. Only
+ * one queue should exist in a process, so create it once, usually in
+ * <code>Application.onCreate()</code>.
+ * </p>
+ */
+public class OfflineQueue {
+
+	public static final int DEFAULT_CONCURRENCY = 2;
+
+	private static final String DIR_NAME = "mktags-queue";
+	private static final String SUFFIX = ".json";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Receives the results of replayed calls. All methods are called on the
+	 * main thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when a queued call succeeds.
+		 * 
+		 * @param api
+		 *            API name without the <code>/api/</code> prefix
+		 * @param result
+		 *            The result, as passed to
+		 *            {@link ApiCallback#onSuccess(JSONObject)}
+		 */
+		public void onReplayed(String api, JSONObject result);
+
+		/**
+		 * Called when a queued call is rejected by the API or could not be
+		 * stored or read back, and is dropped from the queue.
+		 * 
+		 * @param api
+		 *            API name without the <code>/api/</code> prefix, or
+		 *            <code>null</code> if the stored call was unreadable
+		 * @param code
+		 *            Error code
+		 * @param message
+		 *            Error message
+		 */
+		public void onDropped(String api, String code, String message);
+
+		/**
+		 * Called when all the queued calls were replayed.
+		 */
+		public void onDrained();
+
+	}
+
+	private Context m_context;
+	private ApiPoster m_poster;
+	private Handler m_handler;
+	private File m_dir;
+	private int m_concurrency;
+	private volatile Listener m_listener;
+	private AtomicInteger m_pending = new AtomicInteger();
+	private AtomicInteger m_sequence = new AtomicInteger();
+	private BroadcastReceiver m_receiver;
+
+	// only accessed on the storage thread
+	private Set<String> m_inFlight = new HashSet<String>();
+	private boolean m_stalled;
+
+	/**
+	 * Constructor. Calls are replayed {@link #DEFAULT_CONCURRENCY} at a time,
+	 * through the poster {@link Mktags} shares for the API key.
+	 * 
+	 * @param context
+	 *            Any context of the app
+	 * @param apiKey
+	 *            The API key of your account
+	 */
+	public OfflineQueue(Context context, String apiKey) {
+		this(context, ApiPoster.getShared(context, apiKey),
+				DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            Any context of the app
+	 * @param poster
+	 *            Poster used to replay calls
+	 * @param concurrency
+	 *            Maximal number of calls replayed at the same time
+	 */
+	public OfflineQueue(Context context, ApiPoster poster, int concurrency) {
+		m_context = context.getApplicationContext();
+		m_poster = poster;
+		m_handler = new Handler(m_context.getMainLooper());
+		m_dir = m_context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+		m_concurrency = Math.max(1, concurrency);
+
+		PackageManager pm = m_context.getPackageManager();
+		String pkg = m_context.getPackageName();
+		int perm = pm.checkPermission(permission.ACCESS_NETWORK_STATE, pkg);
+		if (perm != PackageManager.PERMISSION_GRANTED)
+			Log.wtf(Consts.TAG,
+					"Missing required permission ACCESS_NETWORK_STATE");
+
+		ApiExecutors.storage().execute(new Runnable() {
+			@Override
+			public void run() {
+				m_pending.set(list().size());
+			}
+		});
+
+		// the sticky broadcast triggers the first replay right away
+		m_receiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (isOnline())
+					flush();
+			}
+		};
+		m_context.registerReceiver(m_receiver, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	/**
+	 * @param listener
+	 *            Listener to receive the results of replayed calls, or
+	 *            <code>null</code>
+	 */
+	public void setListener(Listener listener) {
+		m_listener = listener;
+	}
+
+	/**
+	 * @return <code>true</code> if the device has a network connection
+	 */
+	public boolean isOnline() {
+		ConnectivityManager cm = (ConnectivityManager) m_context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = cm.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+
+	/**
+	 * @return Number of calls waiting in the queue, including calls that are
+	 *         being replayed
+	 */
+	public int getPendingCount() {
+		return m_pending.get();
+	}
+
+	/**
+	 * Queue a call. The call is stored in the background and replayed right
+	 * away if the device is online.
+	 * 
+	 * @param api
+	 *            API name without the <code>/api/</code> prefix
+	 * @param tags
+	 *            List of tags to pass to the API (<code>tags</code> in JSON)
+	 * @param params
+	 *            Other parameters to add to the call, besides <code>tags</code>
+	 */
+	public void enqueue(final String api, TagDescriptorSource tags,
+			Map<String, Object> params) {
+		// snapshot the call so it can be stored in the background
+		final TagDescriptorSource tagsCopy = tags.snapshot();
+
+		final Map<String, Object> paramsCopy = new HashMap<String, Object>();
+		if (params != null)
+			paramsCopy.putAll(params);
+		if (m_poster.getRetryPolicy(api).requiresIdempotencyKey())
+			paramsCopy.put(ApiPoster.IDEMPOTENCY_KEY, UUID.randomUUID()
+					.toString());
+
+		final String name = String.format(Locale.US, "%013d-%06d",
+				System.currentTimeMillis(), m_sequence.incrementAndGet());
+
+		ApiExecutors.storage().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					store(name, api, tagsCopy, paramsCopy);
+				} catch (IOException e) {
+					Log.e(Consts.TAG, "Failed to queue " + api, e);
+					notifyDropped(api, "storage_error", e.toString());
+					return;
+				}
+
+				m_pending.incrementAndGet();
+				if (isOnline())
+					fill();
+			}
+		});
+	}
+
+	/**
+	 * Replay the queued calls now, even if previous replays failed.
+	 */
+	public void flush() {
+		ApiExecutors.storage().execute(new Runnable() {
+			@Override
+			public void run() {
+				m_stalled = false;
+				fill();
+			}
+		});
+	}
+
+	/**
+	 * Stop listening to connectivity changes. Queued calls stay stored and are
+	 * replayed by the next queue created.
+	 */
+	public void close() {
+		m_context.unregisterReceiver(m_receiver);
+	}
+
+	private void store(String name, String api, TagDescriptorSource tags,
+			Map<String, Object> params) throws IOException {
+		File temp = new File(m_dir, name + TEMP_SUFFIX);
+		JsonStreamWriter writer = new JsonStreamWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(temp), CHARSET)));
+		boolean stored = false;
+		try {
+			writer.beginObject();
+			writer.name("api").value(api);
+
+			writer.name("tags");
+			tags.writeJson(writer);
+
+			writer.name("params").beginObject();
+			for (Iterator<String> i = params.keySet().iterator(); i.hasNext();) {
+				String key = i.next();
+				writer.name(key).value(params.get(key));
+			}
+			writer.endObject();
+
+			writer.endObject();
+			stored = true;
+		} catch (RuntimeException e) {
+			throw new IOException(e.toString());
+		} finally {
+			writer.close();
+			if (!stored)
+				temp.delete();
+		}
+
+		// a call is only visible once it was stored completely
+		if (!temp.renameTo(new File(m_dir, name + SUFFIX))) {
+			temp.delete();
+			throw new IOException("Failed to rename " + temp);
+		}
+	}
+
+	private JsonStreamReader open(String name) throws IOException {
+		return new JsonStreamReader(new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(m_dir, name)), CHARSET)));
+	}
+
+	/**
+	 * Read a stored call, except for its tags, which are only checked and
+	 * streamed from the file again when the request is written.
+	 */
+	private StoredCall load(String name) throws IOException, JSONException {
+		StoredCall call = new StoredCall(name);
+		JsonStreamReader reader = open(name);
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				if (key.equals("api")) {
+					call.m_api = reader.nextString();
+				} else if (key.equals("params")) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String param = reader.nextName();
+						call.m_params.put(param, reader.readJsonValue());
+					}
+					reader.endObject();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} finally {
+			reader.close();
+		}
+
+		if (call.m_api == null)
+			throw new JSONException("Missing api");
+		return call;
+	}
+
+	private List<String> list() {
+		List<String> names = new ArrayList<String>();
+		String[] files = m_dir.list();
+		if (files == null)
+			return names;
+
+		Arrays.sort(files);
+		for (String name : files) {
+			if (name.endsWith(SUFFIX))
+				names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Start replaying the oldest calls that aren't replayed yet, up to the
+	 * concurrency limit. Runs on the storage thread.
+	 */
+	private void fill() {
+		if (m_stalled)
+			return;
+
+		for (String name : list()) {
+			if (m_inFlight.size() >= m_concurrency)
+				return;
+			if (m_inFlight.contains(name))
+				continue;
+
+			StoredCall call;
+			try {
+				call = load(name);
+			} catch (Exception e) {
+				Log.e(Consts.TAG, "Dropping unreadable queued call " + name, e);
+				remove(name);
+				notifyDropped(null, "storage_error", e.toString());
+				continue;
+			}
+
+			m_inFlight.add(name);
+			replay(call);
+		}
+	}
+
+	private void replay(StoredCall call) {
+		if (Log.isLoggable(Consts.TAG, Log.INFO))
+			Log.i(Consts.TAG, "Replaying queued " + call.m_api);
+		m_poster.postEncoded(call.m_api, call, call.m_params,
+				new ReplayCallback(call.m_name, call.m_api));
+	}
+
+	private void remove(String name) {
+		if (new File(m_dir, name).delete())
+			m_pending.decrementAndGet();
+	}
+
+	/**
+	 * Called on the main thread when a replayed call completes.
+	 * 
+	 * @param done
+	 *            <code>true</code> if the call should be removed from the
+	 *            queue, or <code>false</code> to keep it for the next replay
+	 */
+	private void finish(final String name, final boolean done) {
+		ApiExecutors.storage().execute(new Runnable() {
+			@Override
+			public void run() {
+				m_inFlight.remove(name);
+				if (done)
+					remove(name);
+				else
+					m_stalled = true;
+				fill();
+
+				if (m_inFlight.isEmpty() && m_pending.get() == 0)
+					notifyDrained();
+			}
+		});
+	}
+
+	private void notifyDrained() {
+		m_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Listener listener = m_listener;
+				if (listener != null)
+					listener.onDrained();
+			}
+		});
+	}
+
+	private void notifyDropped(final String api, final String code,
+			final String message) {
+		m_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Listener listener = m_listener;
+				if (listener != null)
+					listener.onDropped(api, code, message);
+			}
+		});
+	}
+
+	/**
+	 * Copy the next value of a reader to a writer, token by token.
+	 */
+	private static void copy(ValueReader reader, ValueWriter writer)
+			throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_ARRAY:
+			reader.beginArray();
+			writer.beginArray();
+			while (reader.hasNext())
+				copy(reader, writer);
+			reader.endArray();
+			writer.endArray();
+			break;
+		case BEGIN_OBJECT:
+			reader.beginObject();
+			writer.beginObject();
+			while (reader.hasNext()) {
+				writer.name(reader.nextName());
+				copy(reader, writer);
+			}
+			reader.endObject();
+			writer.endObject();
+			break;
+		case STRING:
+			writer.value(reader.nextString());
+			break;
+		case NUMBER:
+			String number = reader.nextString();
+			try {
+				writer.value(Long.parseLong(number));
+			} catch (NumberFormatException e) {
+				writer.value(Double.parseDouble(number));
+			}
+			break;
+		case BOOLEAN:
+			writer.value(reader.nextBoolean());
+			break;
+		case NULL:
+			reader.nextNull();
+			writer.nullValue();
+			break;
+		default:
+			throw new IOException("Expected a value but was "
+					+ reader.peek());
+		}
+	}
+
+	/**
+	 * Stored call being replayed. Writing it writes its tags, read from the
+	 * file, so they are never held in memory as a whole.
+	 */
+	private class StoredCall implements JsonWritable {
+
+		private String m_name;
+		private String m_api;
+		private Map<String, Object> m_params = new HashMap<String, Object>();
+
+		public StoredCall(String name) {
+			m_name = name;
+		}
+
+		@Override
+		public void writeJson(ValueWriter writer) throws IOException {
+			JsonStreamReader reader = open(m_name);
+			try {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if (reader.nextName().equals("tags")) {
+						copy(reader, writer);
+						return;
+					}
+					reader.skipValue();
+				}
+				writer.beginArray().endArray();
+			} finally {
+				reader.close();
+			}
+		}
+
+	}
+
+	private class ReplayCallback extends AbstractApiCallback {
+
+		private String m_name;
+		private String m_api;
+
+		public ReplayCallback(String name, String api) {
+			m_name = name;
+			m_api = api;
+		}
+
+		@Override
+		public void onSuccess(JSONObject result) throws JSONException {
+			finish(m_name, true);
+			Listener listener = m_listener;
+			if (listener != null)
+				listener.onReplayed(m_api, result);
+		}
+
+		@Override
+		public void onUserError(String code, String message) {
+			super.onUserError(code, message);
+			finish(m_name, true);
+			notifyDropped(m_api, code, message);
+		}
+
+		@Override
+		public void onDeveloperError(String code, String message) {
+			super.onDeveloperError(code, message);
+			finish(m_name, true);
+			notifyDropped(m_api, code, message);
+		}
+
+		@Override
+		public void onServerError(String code, String message) {
+			super.onServerError(code, message);
+			finish(m_name, false);
+		}
+
+		@Override
+		public void onException(Throwable e) {
+			super.onException(e);
+			finish(m_name, false);
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.mktags.android.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Group of API calls that share a lifetime, usually that of an Activity. All
+ * the calls still in progress are cancelled at once when the scope is closed,
+ * so their callbacks, and anything the callbacks reference, can be garbage
+ * collected right away and their connections are released.
+ * </p>
+ * 
+ * <p>
+ * Calls are held weakly, so completed calls don't pile up in a scope that
+ * lives long. Calls added after the scope was closed are cancelled right
+ * away. All methods are thread-safe.
+ * </p>
+ */
+public class RequestScope {
+
+	private Set<ApiRequest> m_requests = Collections
+			.newSetFromMap(new WeakHashMap<ApiRequest, Boolean>());
+	private boolean m_closed;
+
+	/**
+	 * Add a call to the scope.
+	 * 
+	 * @param request
+	 *            Handle of the call
+	 * @return The same handle, for convenience
+	 */
+	public ApiRequest add(ApiRequest request) {
+		synchronized (this) {
+			if (!m_closed) {
+				m_requests.add(request);
+				return request;
+			}
+		}
+
+		request.cancel();
+		return request;
+	}
+
+	/**
+	 * Cancel all the calls in the scope that are still in progress. The scope
+	 * can still be used for new calls.
+	 */
+	public void cancelAll() {
+		List<ApiRequest> requests;
+		synchronized (this) {
+			requests = new ArrayList<ApiRequest>(m_requests);
+			m_requests.clear();
+		}
+
+		for (ApiRequest request : requests)
+			request.cancel();
+	}
+
+	/**
+	 * Cancel all the calls in the scope, and all the calls added to it from
+	 * now on.
+	 */
+	public void close() {
+		synchronized (this) {
+			m_closed = true;
+		}
+		cancelAll();
+	}
+
+	/**
+	 * @return <code>true</code> if the scope was closed
+	 */
+	public synchronized boolean isClosed() {
+		return m_closed;
+	}
+
+}
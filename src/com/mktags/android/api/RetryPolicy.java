@@ -0,0 +1,166 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Describes if and how a failed API call should be retried.
+ * 
+ * <p>
+ * Retries are delayed using capped exponential backoff with jitter. The delay
+ * before retry <code>n</code> is picked randomly between half and all of
+ * <code>min(maxDelay, baseDelay * 2^(n-1))</code>, so clients that failed
+ * together don't retry together.
+ * </p>
+ * 
+ * <p>
+ * Only transient failures are retried: server errors with a transient code,
+ * connection problems and HTTP 5xx responses. User and developer errors are
+ * never retried as repeating the same request will just fail the same way.
+ * </p>
+ * 
+ * <p>
+ * APIs that are not safe to repeat, like <code>buy</code>, should use a policy
+ * that requires an idempotency key. A key is then generated once per call and
+ * sent with every attempt, letting the server recognize repeated attempts.
+ * </p>
+ */
+public class RetryPolicy {
+
+	/**
+	 * Policy that never retries.
+	 */
+	public static final RetryPolicy NEVER = new RetryPolicy(1, 0, 0, false);
+
+	private static final Random s_random = new Random();
+	private static final String[] TRANSIENT_CODES = { "unavailable",
+			"timeout", "overloaded", "rate_limited" };
+
+	private int m_maxAttempts;
+	private long m_baseDelay;
+	private long m_maxDelay;
+	private boolean m_idempotencyKey;
+	private Set<String> m_retryableCodes;
+
+	/**
+	 * Constructor. Server errors are retried if their code is
+	 * <code>unavailable</code>, <code>timeout</code>,
+	 * <code>overloaded</code> or <code>rate_limited</code>.
+	 * 
+	 * @param maxAttempts
+	 *            Maximal number of attempts, including the first one
+	 * @param baseDelay
+	 *            Delay in milliseconds before the first retry
+	 * @param maxDelay
+	 *            Cap in milliseconds on the delay between any two attempts
+	 * @param idempotencyKey
+	 *            Use <code>true</code> to send an idempotency key with the call
+	 *            so it can be safely retried
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			boolean idempotencyKey) {
+		this(maxAttempts, baseDelay, maxDelay, idempotencyKey,
+				TRANSIENT_CODES);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxAttempts
+	 *            Maximal number of attempts, including the first one
+	 * @param baseDelay
+	 *            Delay in milliseconds before the first retry
+	 * @param maxDelay
+	 *            Cap in milliseconds on the delay between any two attempts
+	 * @param idempotencyKey
+	 *            Use <code>true</code> to send an idempotency key with the call
+	 *            so it can be safely retried
+	 * @param retryableCodes
+	 *            Codes of the server errors that are transient and should be
+	 *            retried
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			boolean idempotencyKey, String[] retryableCodes) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be positive");
+
+		m_maxAttempts = maxAttempts;
+		m_baseDelay = baseDelay;
+		m_maxDelay = maxDelay;
+		m_idempotencyKey = idempotencyKey;
+		m_retryableCodes = new HashSet<String>(Arrays.asList(retryableCodes));
+	}
+
+	/**
+	 * @return Maximal number of attempts, including the first one
+	 */
+	public int getMaxAttempts() {
+		return m_maxAttempts;
+	}
+
+	/**
+	 * @return <code>true</code> if calls should carry an idempotency key
+	 */
+	public boolean requiresIdempotencyKey() {
+		return m_idempotencyKey;
+	}
+
+	/**
+	 * Calculate the delay before the next attempt.
+	 * 
+	 * @param attempt
+	 *            Number of attempts made so far (starting with 1)
+	 * @return Delay in milliseconds
+	 */
+	public long getDelay(int attempt) {
+		long delay = m_baseDelay;
+		for (int i = 1; i < attempt && delay < m_maxDelay; i++)
+			delay *= 2;
+		delay = Math.min(delay, m_maxDelay);
+
+		long half = delay / 2;
+		synchronized (s_random) {
+			return half + (long) (s_random.nextDouble() * (delay - half));
+		}
+	}
+
+	/**
+	 * Check if a server error reported by the API should be retried. Only
+	 * transient errors are, others would just fail the same way again.
+	 * 
+	 * @param code
+	 *            Short error code as reported by the API
+	 * @return <code>true</code> to retry the call
+	 */
+	public boolean isRetryable(String code) {
+		return m_retryableCodes.contains(code);
+	}
+
+	/**
+	 * Check if a call that failed with an exception should be retried.
+	 * Connection problems, HTTP 5xx responses and responses that broke off
+	 * while being read are retried while certificate problems are not.
+	 * 
+	 * @param e
+	 *            The exception the call failed with
+	 * @return <code>true</code> to retry the call
+	 */
+	public boolean isRetryable(Throwable e) {
+		if (e instanceof HttpResponseException) {
+			int status = ((HttpResponseException) e).getStatusCode();
+			return status >= 500 || status == 408 || status == 429;
+		}
+		if (e instanceof SSLPeerUnverifiedException)
+			return false;
+		// includes MalformedJsonException, usually a truncated response
+		return e instanceof IOException;
+	}
+
+}
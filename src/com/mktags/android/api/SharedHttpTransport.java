@@ -0,0 +1,270 @@
+package com.mktags.android.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+import com.mktags.android.Consts;
+import com.mktags.android.api.ApiScheduler.Priority;
+
+/**
+ * <p>
+ * Default {@link ApiTransport} that sends requests through a single HTTP
+ * client shared by the whole process. Connections are kept alive and reused by
+ * all {@link ApiPoster} instances, so creating a new instance doesn't cost new
+ * threads or TLS handshakes.
+ * </p>
+ * 
+ * <p>
+ * TLS sessions are kept in a {@link SSLSessionCache} stored in the app's
+ * private storage, so even the first connection after the app is restarted
+ * can resume a previous session with an abbreviated handshake.
+ * </p>
+ * 
+ * <p>
+ * The size of the connection pool and the number of threads can be changed by
+ * calling {@link #configure(int, int)} before the shared instance is first
+ * used.
+ * </p>
+ */
+public class SharedHttpTransport extends HttpClientTransport {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	public static final int DEFAULT_THREADS = 4;
+
+	private static final int CONNECTION_TIMEOUT = 10 * 1000;
+	private static final int SOCKET_TIMEOUT = 30 * 1000;
+	private static final int SOCKET_BUFFER_SIZE = 8192;
+	private static final int HANDSHAKE_TIMEOUT = 10 * 1000;
+	private static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+	private static int s_maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private static int s_threads = DEFAULT_THREADS;
+	private static SharedHttpTransport s_instance;
+
+	private DefaultHttpClient m_httpClient;
+	private ExecutorService m_executor;
+	private int m_threads;
+
+	/**
+	 * @param context
+	 *            Any context of the app, used to find its private storage
+	 * @return The instance shared by the whole process
+	 */
+	public static synchronized SharedHttpTransport getInstance(Context context) {
+		if (s_instance == null)
+			s_instance = new SharedHttpTransport(context, s_maxConnections,
+					s_threads);
+		return s_instance;
+	}
+
+	/**
+	 * Configure the shared instance. Must be called before the shared instance
+	 * is first used, usually in <code>Application.onCreate()</code>.
+	 * 
+	 * @param maxConnections
+	 *            Maximal number of connections kept open
+	 * @param threads
+	 *            Number of threads sending requests concurrently
+	 * @throws IllegalStateException
+	 *             If the shared instance was already created
+	 */
+	public static synchronized void configure(int maxConnections,
+			int threads) {
+		if (s_instance != null)
+			throw new IllegalStateException(
+					"Shared transport already created");
+
+		s_maxConnections = maxConnections;
+		s_threads = threads;
+	}
+
+	/**
+	 * Constructor. Use {@link #getInstance(Context)} instead, unless a separate
+	 * connection pool is really needed.
+	 * 
+	 * @param context
+	 *            Any context of the app, used to find its private storage
+	 * @param maxConnections
+	 *            Maximal number of connections kept open
+	 * @param threads
+	 *            Number of threads sending requests concurrently
+	 */
+	public SharedHttpTransport(Context context, int maxConnections,
+			int threads) {
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(maxConnections));
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUserAgent(params, "mtkags android sdk/"
+				+ Consts.VERSION);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		SSLSessionCache sessionCache = new SSLSessionCache(
+				context.getApplicationContext());
+		registry.register(new Scheme("https", SSLCertificateSocketFactory
+				.getHttpSocketFactory(HANDSHAKE_TIMEOUT, sessionCache), 443));
+
+		m_httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(
+				params, registry), params);
+		m_httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+		m_httpClient.addRequestInterceptor(new GzipRequestInterceptor());
+		m_httpClient.addResponseInterceptor(new GzipResponseInterceptor());
+
+		m_executor = ApiExecutors.newNetworkExecutor(threads);
+		m_threads = threads;
+	}
+
+	@Override
+	ApiScheduler newScheduler() {
+		if (m_threads == DEFAULT_THREADS)
+			return super.newScheduler();
+
+		// keep a thread free for interactive requests when there is one
+		ApiScheduler scheduler = new ApiScheduler(this, m_threads);
+		scheduler.setLimit(Priority.DEVELOPER, 1);
+		scheduler.setLimit(Priority.BACKGROUND, Math.max(1, m_threads - 2));
+		return scheduler;
+	}
+
+	@Override
+	public HttpClient getHttpClient() {
+		return m_httpClient;
+	}
+
+	@Override
+	protected HttpContext getHttpContext() {
+		return null;
+	}
+
+	@Override
+	protected Executor getExecutor() {
+		return m_executor;
+	}
+
+	/**
+	 * Keeps connections alive as long as the server allows, or for
+	 * {@link SharedHttpTransport#DEFAULT_KEEP_ALIVE} if it doesn't say.
+	 */
+	private static class KeepAliveStrategy implements
+			ConnectionKeepAliveStrategy {
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			BasicHeaderElementIterator i = new BasicHeaderElementIterator(
+					response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (i.hasNext()) {
+				HeaderElement element = i.nextElement();
+				if (element.getName().equalsIgnoreCase("timeout")
+						&& element.getValue() != null) {
+					try {
+						return Long.parseLong(element.getValue()) * 1000;
+					} catch (NumberFormatException e) {
+						break;
+					}
+				}
+			}
+			return DEFAULT_KEEP_ALIVE;
+		}
+
+	}
+
+	private static class GzipRequestInterceptor implements
+			HttpRequestInterceptor {
+
+		@Override
+		public void process(HttpRequest request, HttpContext context)
+				throws HttpException, IOException {
+			if (!request.containsHeader("Accept-Encoding"))
+				request.addHeader("Accept-Encoding", "gzip");
+		}
+
+	}
+
+	private static class GzipResponseInterceptor implements
+			HttpResponseInterceptor {
+
+		@Override
+		public void process(HttpResponse response, HttpContext context)
+				throws HttpException, IOException {
+			HttpEntity entity = response.getEntity();
+			if (entity == null)
+				return;
+
+			Header encoding = entity.getContentEncoding();
+			if (encoding == null)
+				return;
+
+			for (HeaderElement element : encoding.getElements()) {
+				if (element.getName().equalsIgnoreCase("gzip")) {
+					response.setEntity(new GzipEntity(entity));
+					return;
+				}
+			}
+		}
+
+	}
+
+	private static class GzipEntity extends HttpEntityWrapper {
+
+		public GzipEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+	}
+
+}
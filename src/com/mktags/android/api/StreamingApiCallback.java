@@ -0,0 +1,48 @@
+package com.mktags.android.api;
+
+import org.json.JSONObject;
+
+import com.mktags.android.json.ValueReader;
+
+/**
+ * <p>
+ * Callback interface for API calls with large results, like <code>test</code>.
+ * Instead of getting the result as a whole {@link JSONObject}, the result is
+ * read and decoded directly from the response stream by
+ * {@link #decodeResult(ValueReader)} and the decoded object is then passed to
+ * {@link #onDecodedResult(Object)}.
+ * </p>
+ * 
+ * <p>
+ * {@link #onSuccess(JSONObject)} is not called for streaming callbacks. All
+ * error methods are called just like for any other {@link ApiCallback}.
+ * </p>
+ * 
+ * @param <T>
+ *            Type of the decoded result
+ */
+public interface StreamingApiCallback<T> extends ApiCallback {
+
+	/**
+	 * Called on a background thread to read the result from the response
+	 * stream.
+	 * 
+	 * @param reader
+	 *            Reader positioned right before the <code>result</code> object
+	 * @return The decoded result
+	 * @throws Exception
+	 *             In case of an error reading or decoding the result
+	 * @note Throwing an exception will result in a later call to
+	 *       {@link #onException(Throwable)}
+	 */
+	public T decodeResult(ValueReader reader) throws Exception;
+
+	/**
+	 * Called with the decoded result after a successful API call.
+	 * 
+	 * @param result
+	 *            The result, as returned by {@link #decodeResult}
+	 */
+	public void onDecodedResult(T result);
+
+}
@@ -0,0 +1,514 @@
+package com.mktags.android.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+/**
+ * <p>
+ * Reads CBOR (RFC 7049) one token at a time, as a {@link ValueReader} just
+ * like {@link JsonStreamReader}, so the same decoding code handles both
+ * encodings. CBOR maps are read as objects and must have text keys. Semantic
+ * tags are skipped.
+ * </p>
+ * 
+ * <p>
+ * Byte strings are returned as-is by {@link #nextBytes()}. When read with
+ * {@link #nextString()}, for example by {@link #readJsonObject()}, they are
+ * returned as Base64 strings, just like binary values are sent in JSON.
+ * </p>
+ */
+public class CborStreamReader implements ValueReader {
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+	private static final int MAJOR_SIMPLE = 7;
+
+	private static final int INDEFINITE = 31;
+	private static final int BREAK = 0xff;
+
+	private static final String CHARSET = "UTF-8";
+	private static final int CHUNK_SIZE = 8192;
+
+	private InputStream m_in;
+
+	// open arrays and maps, with the number of items left to read or -1 if
+	// they end with a break, and the number of items read so far
+	private boolean[] m_maps = new boolean[16];
+	private long[] m_remaining = new long[16];
+	private long[] m_read = new long[16];
+	private int m_depth;
+	private boolean m_documentRead;
+
+	private JsonToken m_token;
+	private int m_initial;
+	private long m_argument;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param in
+	 *            Stream the CBOR will be read from, preferably buffered
+	 */
+	public CborStreamReader(InputStream in) {
+		m_in = in;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if (m_token != null)
+			return m_token;
+
+		if (m_depth == 0) {
+			if (m_documentRead)
+				return m_token = JsonToken.END_DOCUMENT;
+		} else if (m_remaining[m_depth - 1] == 0) {
+			return m_token = endToken();
+		}
+
+		int initial = readByte();
+		if (initial == BREAK) {
+			if (m_depth == 0 || m_remaining[m_depth - 1] != -1)
+				throw syntaxError("Unexpected break");
+			return m_token = endToken();
+		}
+		while (initial >>> 5 == MAJOR_TAG) {
+			readArgument(initial);
+			initial = readByte();
+		}
+
+		m_initial = initial;
+		m_argument = readArgument(initial);
+		int major = initial >>> 5;
+
+		if (m_depth > 0 && m_maps[m_depth - 1]
+				&& m_read[m_depth - 1] % 2 == 0) {
+			if (major != MAJOR_TEXT)
+				throw syntaxError("Expected a text key");
+			return m_token = JsonToken.NAME;
+		}
+
+		switch (major) {
+		case MAJOR_UNSIGNED:
+		case MAJOR_NEGATIVE:
+			return m_token = JsonToken.NUMBER;
+		case MAJOR_BYTES:
+		case MAJOR_TEXT:
+			return m_token = JsonToken.STRING;
+		case MAJOR_ARRAY:
+			return m_token = JsonToken.BEGIN_ARRAY;
+		case MAJOR_MAP:
+			return m_token = JsonToken.BEGIN_OBJECT;
+		default:
+			switch (initial & 0x1f) {
+			case 20:
+			case 21:
+				return m_token = JsonToken.BOOLEAN;
+			case 22:
+			case 23:
+				return m_token = JsonToken.NULL;
+			case 25:
+			case 26:
+			case 27:
+				return m_token = JsonToken.NUMBER;
+			default:
+				throw syntaxError("Unsupported simple value " + initial);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		JsonToken token = peek();
+		return token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT
+				&& token != JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		expect(JsonToken.BEGIN_ARRAY);
+		push(false, m_argument);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		expect(JsonToken.END_ARRAY);
+		m_depth--;
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT);
+		push(true, m_argument == -1 ? -1 : m_argument * 2);
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		expect(JsonToken.END_OBJECT);
+		m_depth--;
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		expect(JsonToken.NAME);
+		return new String(readBytes(), CHARSET);
+	}
+
+	/**
+	 * @return The next text value, byte string value as Base64, or number
+	 *         value as a string
+	 * @throws IOException
+	 */
+	@Override
+	public String nextString() throws IOException {
+		JsonToken token = peek();
+		if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+			throw new IllegalStateException("Expected a string but was "
+					+ token);
+
+		int major = m_initial >>> 5;
+		String value;
+		if (major == MAJOR_TEXT)
+			value = new String(readBytes(), CHARSET);
+		else if (major == MAJOR_BYTES)
+			value = Base64.encodeToString(readBytes(), Base64.NO_WRAP);
+		else
+			value = numberString();
+		consume();
+		return value;
+	}
+
+	/**
+	 * @return The next byte string value, or text value decoded from Base64
+	 * @throws IOException
+	 */
+	@Override
+	public byte[] nextBytes() throws IOException {
+		if (peek() == JsonToken.STRING && m_initial >>> 5 == MAJOR_BYTES) {
+			byte[] value = readBytes();
+			consume();
+			return value;
+		}
+
+		String value = nextString();
+		try {
+			return Base64.decode(value, Base64.DEFAULT);
+		} catch (IllegalArgumentException e) {
+			throw syntaxError("Expected Base64 but was " + value);
+		}
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		expect(JsonToken.BOOLEAN);
+		return (m_initial & 0x1f) == 21;
+	}
+
+	@Override
+	public void nextNull() throws IOException {
+		expect(JsonToken.NULL);
+	}
+
+	@Override
+	public double nextDouble() throws IOException {
+		String value = nextString();
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a double but was " + value);
+		}
+	}
+
+	@Override
+	public long nextLong() throws IOException {
+		String value = nextString();
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a long but was " + value);
+		}
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		String value = nextString();
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected an int but was " + value);
+		}
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_ARRAY:
+				beginArray();
+				depth++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				depth++;
+				break;
+			case END_ARRAY:
+				endArray();
+				depth--;
+				break;
+			case END_OBJECT:
+				endObject();
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				int major = m_initial >>> 5;
+				if (major == MAJOR_BYTES || major == MAJOR_TEXT)
+					readBytes();
+				consume();
+			}
+		} while (depth > 0);
+	}
+
+	@Override
+	public Object readJsonValue() throws IOException, JSONException {
+		switch (peek()) {
+		case BEGIN_OBJECT:
+			return readJsonObject();
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			beginArray();
+			while (hasNext())
+				array.put(readJsonValue());
+			endArray();
+			return array;
+		case STRING:
+			return nextString();
+		case NUMBER:
+			String number = nextString();
+			try {
+				return Long.valueOf(number);
+			} catch (NumberFormatException e) {
+				return Double.valueOf(number);
+			}
+		case BOOLEAN:
+			return Boolean.valueOf(nextBoolean());
+		case NULL:
+			nextNull();
+			return JSONObject.NULL;
+		default:
+			throw syntaxError("Expected a value but was " + peek());
+		}
+	}
+
+	@Override
+	public JSONObject readJsonObject() throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+		beginObject();
+		while (hasNext()) {
+			String name = nextName();
+			object.put(name, readJsonValue());
+		}
+		endObject();
+		return object;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_in.close();
+	}
+
+	private JsonToken endToken() {
+		return m_maps[m_depth - 1] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+	}
+
+	private void expect(JsonToken expected) throws IOException {
+		JsonToken token = peek();
+		if (token != expected)
+			throw new IllegalStateException("Expected " + expected
+					+ " but was " + token);
+		if (token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT)
+			consume();
+		else
+			m_token = null;
+	}
+
+	/**
+	 * Count the current token as an item of the enclosing array or map.
+	 */
+	private void consume() {
+		m_token = null;
+		if (m_depth == 0) {
+			m_documentRead = true;
+			return;
+		}
+
+		m_read[m_depth - 1]++;
+		if (m_remaining[m_depth - 1] > 0)
+			m_remaining[m_depth - 1]--;
+	}
+
+	private void push(boolean map, long items) {
+		if (m_depth == m_maps.length) {
+			m_maps = Arrays.copyOf(m_maps, m_depth * 2);
+			m_remaining = Arrays.copyOf(m_remaining, m_depth * 2);
+			m_read = Arrays.copyOf(m_read, m_depth * 2);
+		}
+		m_maps[m_depth] = map;
+		m_remaining[m_depth] = items;
+		m_read[m_depth] = 0;
+		m_depth++;
+	}
+
+	private String numberString() throws IOException {
+		switch (m_initial >>> 5) {
+		case MAJOR_UNSIGNED:
+			if (m_argument < 0)
+				throw syntaxError("Integer too large");
+			return Long.toString(m_argument);
+		case MAJOR_NEGATIVE:
+			if (m_argument < 0)
+				throw syntaxError("Integer too large");
+			return Long.toString(-1 - m_argument);
+		}
+
+		switch (m_initial & 0x1f) {
+		case 25:
+			return Double.toString(halfToDouble((int) m_argument));
+		case 26:
+			return Double.toString(Float.intBitsToFloat((int) m_argument));
+		default:
+			return Double.toString(Double.longBitsToDouble(m_argument));
+		}
+	}
+
+	private static double halfToDouble(int half) {
+		int exponent = (half >> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		double value;
+		if (exponent == 0)
+			value = mantissa * Math.pow(2, -24);
+		else if (exponent != 31)
+			value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+		else
+			value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+		return (half & 0x8000) != 0 ? -value : value;
+	}
+
+	/**
+	 * Read the argument following an initial byte.
+	 * 
+	 * @return The argument, or -1 for an indefinite length
+	 */
+	private long readArgument(int initial) throws IOException {
+		int info = initial & 0x1f;
+		if (info < 24)
+			return info;
+
+		switch (info) {
+		case 24:
+			return readByte();
+		case 25:
+			return readUnsigned(2);
+		case 26:
+			return readUnsigned(4);
+		case 27:
+			return readUnsigned(8);
+		case INDEFINITE:
+			int major = initial >>> 5;
+			if (major >= MAJOR_BYTES && major <= MAJOR_MAP)
+				return -1;
+			throw syntaxError("Unsupported indefinite length");
+		default:
+			throw syntaxError("Invalid additional information " + info);
+		}
+	}
+
+	private long readUnsigned(int length) throws IOException {
+		long value = 0;
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | readByte();
+		return value;
+	}
+
+	/**
+	 * Read the content of a string. The length comes from the stream, so long
+	 * strings are read in chunks, and memory only grows with the data that
+	 * actually arrives. Strings of indefinite length are made of definite
+	 * length strings of the same type, up to a break.
+	 */
+	private byte[] readBytes() throws IOException {
+		ByteArrayOutputStream out;
+		if ((m_initial & 0x1f) == INDEFINITE) {
+			int major = m_initial >>> 5;
+			out = new ByteArrayOutputStream(CHUNK_SIZE);
+			int initial;
+			while ((initial = readByte()) != BREAK) {
+				if (initial >>> 5 != major || (initial & 0x1f) == INDEFINITE)
+					throw syntaxError("Invalid chunk of indefinite string");
+				readBytes(readArgument(initial), out);
+			}
+			return out.toByteArray();
+		}
+
+		if (m_argument >= 0 && m_argument <= CHUNK_SIZE) {
+			byte[] bytes = new byte[(int) m_argument];
+			readFully(bytes, bytes.length);
+			return bytes;
+		}
+
+		out = new ByteArrayOutputStream(CHUNK_SIZE);
+		readBytes(m_argument, out);
+		return out.toByteArray();
+	}
+
+	private void readBytes(long length, ByteArrayOutputStream out)
+			throws IOException {
+		if (length < 0 || length > Integer.MAX_VALUE)
+			throw syntaxError("String too long");
+
+		byte[] chunk = new byte[(int) Math.min(length, CHUNK_SIZE)];
+		while (length > 0) {
+			int count = (int) Math.min(length, CHUNK_SIZE);
+			readFully(chunk, count);
+			out.write(chunk, 0, count);
+			length -= count;
+		}
+	}
+
+	private void readFully(byte[] bytes, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int count = m_in.read(bytes, read, length - read);
+			if (count == -1)
+				throw new EOFException("Unexpected end of document");
+			read += count;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = m_in.read();
+		if (b == -1)
+			throw new EOFException("Unexpected end of document");
+		return b;
+	}
+
+	private IOException syntaxError(String message) {
+		return new MalformedJsonException(message);
+	}
+
+}
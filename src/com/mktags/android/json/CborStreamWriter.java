@@ -0,0 +1,248 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Writes the same values as {@link JsonStreamWriter}, encoded in CBOR (RFC
+ * 7049) instead of JSON. Arrays and objects are written with indefinite
+ * lengths, so they can be streamed without knowing their size in advance.
+ * </p>
+ * 
+ * <p>
+ * Binary values written with {@link #value(byte[])} are written as raw byte
+ * strings instead of Base64 strings, which makes them a third smaller.
+ * </p>
+ */
+public class CborStreamWriter implements ValueWriter {
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+
+	private static final int INDEFINITE = 31;
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int DOUBLE = 0xfb;
+	private static final int BREAK = 0xff;
+
+	private static final String CHARSET = "UTF-8";
+
+	private OutputStream m_out;
+	private int m_depth;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param out
+	 *            Stream the CBOR will be written to, preferably buffered
+	 */
+	public CborStreamWriter(OutputStream out) {
+		m_out = out;
+	}
+
+	@Override
+	public CborStreamWriter beginArray() throws IOException {
+		m_out.write(MAJOR_ARRAY << 5 | INDEFINITE);
+		m_depth++;
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter endArray() throws IOException {
+		return end();
+	}
+
+	@Override
+	public CborStreamWriter beginObject() throws IOException {
+		m_out.write(MAJOR_MAP << 5 | INDEFINITE);
+		m_depth++;
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter endObject() throws IOException {
+		return end();
+	}
+
+	@Override
+	public CborStreamWriter name(String name) throws IOException {
+		if (name == null)
+			throw new NullPointerException("name == null");
+
+		text(name);
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(String value) throws IOException {
+		if (value == null)
+			return nullValue();
+
+		text(value);
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(boolean value) throws IOException {
+		m_out.write(value ? TRUE : FALSE);
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(long value) throws IOException {
+		if (value >= 0)
+			header(MAJOR_UNSIGNED, value);
+		else
+			header(MAJOR_NEGATIVE, -1 - value);
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("Numeric values must be finite");
+
+		m_out.write(DOUBLE);
+		long bits = Double.doubleToLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			m_out.write((int) (bits >>> shift));
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(byte[] value) throws IOException {
+		if (value == null)
+			return nullValue();
+
+		header(MAJOR_BYTES, value.length);
+		m_out.write(value);
+		return this;
+	}
+
+	@Override
+	public CborStreamWriter value(EncodedValue value) throws IOException {
+		m_out.write(value.getCbor());
+		return this;
+	}
+
+	/**
+	 * Like {@link JsonStreamWriter#value(Object)}, except that JSON objects
+	 * and arrays are converted to CBOR one value at a time.
+	 */
+	@Override
+	public CborStreamWriter value(Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL)
+			return nullValue();
+		if (value instanceof String)
+			return value((String) value);
+		if (value instanceof Boolean)
+			return value(((Boolean) value).booleanValue());
+		if (value instanceof Double || value instanceof Float)
+			return value(((Number) value).doubleValue());
+		if (value instanceof Number)
+			return value(((Number) value).longValue());
+		if (value instanceof byte[])
+			return value((byte[]) value);
+		if (value instanceof EncodedValue)
+			return value((EncodedValue) value);
+		if (value instanceof JsonWritable) {
+			((JsonWritable) value).writeJson(this);
+			return this;
+		}
+
+		try {
+			if (value instanceof JSONObject)
+				return value((JSONObject) value);
+			if (value instanceof JSONArray)
+				return value((JSONArray) value);
+		} catch (JSONException e) {
+			throw new IOException(e.toString());
+		}
+		return value(value.toString());
+	}
+
+	@Override
+	public CborStreamWriter nullValue() throws IOException {
+		m_out.write(NULL);
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		m_out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_out.close();
+		if (m_depth > 0)
+			throw new IOException("Incomplete document");
+	}
+
+	private CborStreamWriter value(JSONObject object) throws IOException,
+			JSONException {
+		beginObject();
+		for (Iterator<?> i = object.keys(); i.hasNext();) {
+			String key = (String) i.next();
+			name(key).value(object.get(key));
+		}
+		return endObject();
+	}
+
+	private CborStreamWriter value(JSONArray array) throws IOException,
+			JSONException {
+		beginArray();
+		for (int i = 0; i < array.length(); i++)
+			value(array.get(i));
+		return endArray();
+	}
+
+	private CborStreamWriter end() throws IOException {
+		if (m_depth == 0)
+			throw new IllegalStateException("Nesting problem");
+
+		m_depth--;
+		m_out.write(BREAK);
+		return this;
+	}
+
+	private void text(String value) throws IOException {
+		byte[] bytes = value.getBytes(CHARSET);
+		header(MAJOR_TEXT, bytes.length);
+		m_out.write(bytes);
+	}
+
+	private void header(int major, long argument) throws IOException {
+		int type = major << 5;
+		if (argument < 24) {
+			m_out.write(type | (int) argument);
+		} else if (argument <= 0xff) {
+			m_out.write(type | 24);
+			m_out.write((int) argument);
+		} else if (argument <= 0xffff) {
+			m_out.write(type | 25);
+			m_out.write((int) (argument >>> 8));
+			m_out.write((int) argument);
+		} else if (argument <= 0xffffffffL) {
+			m_out.write(type | 26);
+			for (int shift = 24; shift >= 0; shift -= 8)
+				m_out.write((int) (argument >>> shift));
+		} else {
+			m_out.write(type | 27);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				m_out.write((int) (argument >>> shift));
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.mktags.android.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * <p>
+ * Value that is encoded once for every format it is written in, and then
+ * copied as-is by every {@link ValueWriter} of that format. This saves encoding
+ * values that are written over and over again, like the tag descriptors of a
+ * selection that is priced after every change.
+ * </p>
+ * 
+ * <p>
+ * The wrapped value must not change once it is encoded. Encodings are created
+ * lazily and may be shared between threads.
+ * </p>
+ */
+public final class EncodedValue implements JsonWritable {
+
+	private final JsonWritable m_value;
+	private volatile String m_json;
+	private volatile byte[] m_cbor;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param value
+	 *            Value to encode, which must not change
+	 */
+	public EncodedValue(JsonWritable value) {
+		m_value = value;
+	}
+
+	/**
+	 * @return The value encoded as JSON text
+	 */
+	public String getJson() {
+		String json = m_json;
+		if (json == null) {
+			StringWriter out = new StringWriter();
+			try {
+				m_value.writeJson(new JsonStreamWriter(out));
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"StringWriter should never fail!", e);
+			}
+			json = out.toString();
+			m_json = json;
+		}
+		return json;
+	}
+
+	/**
+	 * @return The value encoded as CBOR, which must not be modified
+	 */
+	byte[] getCbor() {
+		byte[] cbor = m_cbor;
+		if (cbor == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				m_value.writeJson(new CborStreamWriter(out));
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"ByteArrayOutputStream should never fail!", e);
+			}
+			cbor = out.toByteArray();
+			m_cbor = cbor;
+		}
+		return cbor;
+	}
+
+	@Override
+	public void writeJson(ValueWriter writer) throws IOException {
+		writer.value(this);
+	}
+
+}
@@ -0,0 +1,422 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+/**
+ * <p>
+ * Reads JSON from a stream one token at a time, without reading the whole
+ * document into a {@link JSONObject} first. This is a minimal equivalent of
+ * <code>android.util.JsonReader</code> which is only available since API level
+ * 11.
+ * </p>
+ * 
+ * <p>
+ * Parts of the document that are small and should be handled as a whole can
+ * still be read into a {@link JSONObject} with {@link #readJsonObject()}.
+ * </p>
+ */
+public class JsonStreamReader implements ValueReader {
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int NONEMPTY_OBJECT = 5;
+	private static final int DANGLING_NAME = 6;
+
+	private Reader m_in;
+	private char[] m_buffer = new char[1024];
+	private int m_pos;
+	private int m_limit;
+
+	private int[] m_stack = new int[16];
+	private int m_depth;
+
+	private JsonToken m_token;
+	private String m_value;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param in
+	 *            Reader the JSON will be read from
+	 */
+	public JsonStreamReader(Reader in) {
+		m_in = in;
+		m_stack[m_depth++] = EMPTY_DOCUMENT;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if (m_token != null)
+			return m_token;
+
+		int c;
+		switch (m_stack[m_depth - 1]) {
+		case EMPTY_DOCUMENT:
+			m_stack[m_depth - 1] = NONEMPTY_DOCUMENT;
+			return readValueToken(nextNonWhitespace());
+		case NONEMPTY_DOCUMENT:
+			c = nextNonWhitespace();
+			if (c != -1)
+				throw syntaxError("Expected end of document");
+			return m_token = JsonToken.END_DOCUMENT;
+		case EMPTY_ARRAY:
+			m_stack[m_depth - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']')
+				return m_token = JsonToken.END_ARRAY;
+			return readValueToken(c);
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']')
+				return m_token = JsonToken.END_ARRAY;
+			if (c != ',')
+				throw syntaxError("Unterminated array");
+			return readValueToken(nextNonWhitespace());
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}')
+				return m_token = JsonToken.END_OBJECT;
+			if (m_stack[m_depth - 1] == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Unterminated object");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("Expected name");
+			m_value = readString();
+			m_stack[m_depth - 1] = DANGLING_NAME;
+			return m_token = JsonToken.NAME;
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("Expected ':'");
+			m_stack[m_depth - 1] = NONEMPTY_OBJECT;
+			return readValueToken(nextNonWhitespace());
+		default:
+			throw new IllegalStateException("Nesting problem");
+		}
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		JsonToken token = peek();
+		return token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT
+				&& token != JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		expect(JsonToken.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		expect(JsonToken.END_ARRAY);
+		m_depth--;
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		expect(JsonToken.END_OBJECT);
+		m_depth--;
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		expect(JsonToken.NAME);
+		return m_value;
+	}
+
+	@Override
+	public String nextString() throws IOException {
+		JsonToken token = peek();
+		if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+			throw new IllegalStateException("Expected a string but was "
+					+ token);
+		m_token = null;
+		return m_value;
+	}
+
+	@Override
+	public byte[] nextBytes() throws IOException {
+		String value = nextString();
+		try {
+			return Base64.decode(value, Base64.DEFAULT);
+		} catch (IllegalArgumentException e) {
+			throw syntaxError("Expected Base64 but was " + value);
+		}
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		expect(JsonToken.BOOLEAN);
+		return m_value.equals("true");
+	}
+
+	@Override
+	public void nextNull() throws IOException {
+		expect(JsonToken.NULL);
+	}
+
+	@Override
+	public double nextDouble() throws IOException {
+		String value = nextString();
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a double but was " + value);
+		}
+	}
+
+	@Override
+	public long nextLong() throws IOException {
+		String value = nextString();
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a long but was " + value);
+		}
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		String value = nextString();
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected an int but was " + value);
+		}
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_ARRAY:
+				beginArray();
+				depth++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				depth++;
+				break;
+			case END_ARRAY:
+				endArray();
+				depth--;
+				break;
+			case END_OBJECT:
+				endObject();
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				m_token = null;
+			}
+		} while (depth > 0);
+	}
+
+	@Override
+	public Object readJsonValue() throws IOException, JSONException {
+		switch (peek()) {
+		case BEGIN_OBJECT:
+			return readJsonObject();
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			beginArray();
+			while (hasNext())
+				array.put(readJsonValue());
+			endArray();
+			return array;
+		case STRING:
+			return nextString();
+		case NUMBER:
+			String number = nextString();
+			try {
+				return Long.valueOf(number);
+			} catch (NumberFormatException e) {
+				return Double.valueOf(number);
+			}
+		case BOOLEAN:
+			return Boolean.valueOf(nextBoolean());
+		case NULL:
+			nextNull();
+			return JSONObject.NULL;
+		default:
+			throw syntaxError("Expected a value but was " + peek());
+		}
+	}
+
+	@Override
+	public JSONObject readJsonObject() throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+		beginObject();
+		while (hasNext()) {
+			String name = nextName();
+			object.put(name, readJsonValue());
+		}
+		endObject();
+		return object;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_in.close();
+	}
+
+	private void expect(JsonToken expected) throws IOException {
+		JsonToken token = peek();
+		if (token != expected)
+			throw new IllegalStateException("Expected " + expected
+					+ " but was " + token);
+		m_token = null;
+	}
+
+	private void push(int scope) {
+		if (m_depth == m_stack.length)
+			m_stack = Arrays.copyOf(m_stack, m_depth * 2);
+		m_stack[m_depth++] = scope;
+	}
+
+	private JsonToken readValueToken(int c) throws IOException {
+		switch (c) {
+		case '{':
+			return m_token = JsonToken.BEGIN_OBJECT;
+		case '[':
+			return m_token = JsonToken.BEGIN_ARRAY;
+		case '"':
+			m_value = readString();
+			return m_token = JsonToken.STRING;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		}
+
+		StringBuilder literal = new StringBuilder();
+		literal.append((char) c);
+		while ((c = read()) != -1 && isLiteral((char) c))
+			literal.append((char) c);
+		if (c != -1)
+			m_pos--;
+		m_value = literal.toString();
+
+		if (m_value.equals("true") || m_value.equals("false"))
+			return m_token = JsonToken.BOOLEAN;
+		if (m_value.equals("null"))
+			return m_token = JsonToken.NULL;
+		char first = m_value.charAt(0);
+		if (first == '-' || Character.isDigit(first))
+			return m_token = JsonToken.NUMBER;
+
+		throw syntaxError("Unexpected value " + m_value);
+	}
+
+	private String readString() throws IOException {
+		StringBuilder string = new StringBuilder();
+		while (true) {
+			int c = read();
+			switch (c) {
+			case -1:
+				throw syntaxError("Unterminated string");
+			case '"':
+				return string.toString();
+			case '\\':
+				string.append(readEscape());
+				break;
+			default:
+				string.append((char) c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit == -1)
+					throw syntaxError("Invalid unicode escape");
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		case 't':
+			return '\t';
+		case 'b':
+			return '\b';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 'f':
+			return '\f';
+		case -1:
+			throw syntaxError("Unterminated escape sequence");
+		default:
+			return (char) c;
+		}
+	}
+
+	private static boolean isLiteral(char c) {
+		switch (c) {
+		case ',':
+		case ':':
+		case '[':
+		case ']':
+		case '{':
+		case '}':
+		case '"':
+		case ' ':
+		case '\t':
+		case '\r':
+		case '\n':
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+		return c;
+	}
+
+	private int read() throws IOException {
+		if (m_pos == m_limit) {
+			m_limit = m_in.read(m_buffer, 0, m_buffer.length);
+			m_pos = 0;
+			if (m_limit <= 0) {
+				m_limit = 0;
+				return -1;
+			}
+		}
+		return m_buffer[m_pos++];
+	}
+
+	private IOException syntaxError(String message) {
+		return new MalformedJsonException(message);
+	}
+
+}
@@ -0,0 +1,288 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+/**
+ * <p>
+ * Writes JSON directly into a stream, one token at a time, without building a
+ * tree of {@link JSONObject} first. This is a minimal equivalent of
+ * <code>android.util.JsonWriter</code> which is only available since API level
+ * 11.
+ * </p>
+ * 
+ * <p>
+ * Besides the values of every {@link ValueWriter}, values that are already
+ * encoded as JSON can be written as-is with {@link #rawValue(String)}.
+ * </p>
+ * 
+ * <p>
+ * Just like the Android version, names and values are written by chaining
+ * calls:
+ * </p>
+ * 
+ * <pre>
+ * <code>
+ * 	writer.beginObject();
+ * 	writer.name(&quot;label&quot;).value(&quot;test label&quot;);
+ * 	writer.endObject();
+ * </code>
+ * </pre>
+ */
+public class JsonStreamWriter implements ValueWriter {
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int NONEMPTY_OBJECT = 5;
+	private static final int DANGLING_NAME = 6;
+
+	private Writer m_out;
+	private int[] m_stack = new int[16];
+	private int m_depth;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param out
+	 *            Writer the JSON will be written to
+	 */
+	public JsonStreamWriter(Writer out) {
+		m_out = out;
+		m_stack[m_depth++] = EMPTY_DOCUMENT;
+	}
+
+	@Override
+	public JsonStreamWriter beginArray() throws IOException {
+		return open(EMPTY_ARRAY, '[');
+	}
+
+	@Override
+	public JsonStreamWriter endArray() throws IOException {
+		return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+	}
+
+	@Override
+	public JsonStreamWriter beginObject() throws IOException {
+		return open(EMPTY_OBJECT, '{');
+	}
+
+	@Override
+	public JsonStreamWriter endObject() throws IOException {
+		return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+	}
+
+	@Override
+	public JsonStreamWriter name(String name) throws IOException {
+		if (name == null)
+			throw new NullPointerException("name == null");
+
+		int top = peek();
+		if (top == NONEMPTY_OBJECT)
+			m_out.write(',');
+		else if (top != EMPTY_OBJECT)
+			throw new IllegalStateException("Nesting problem");
+
+		string(name);
+		m_out.write(':');
+		m_stack[m_depth - 1] = DANGLING_NAME;
+		return this;
+	}
+
+	@Override
+	public JsonStreamWriter value(String value) throws IOException {
+		if (value == null)
+			return nullValue();
+
+		beforeValue();
+		string(value);
+		return this;
+	}
+
+	@Override
+	public JsonStreamWriter value(boolean value) throws IOException {
+		beforeValue();
+		m_out.write(value ? "true" : "false");
+		return this;
+	}
+
+	@Override
+	public JsonStreamWriter value(long value) throws IOException {
+		beforeValue();
+		m_out.write(Long.toString(value));
+		return this;
+	}
+
+	@Override
+	public JsonStreamWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("Numeric values must be finite");
+
+		beforeValue();
+		m_out.write(Double.toString(value));
+		return this;
+	}
+
+	@Override
+	public JsonStreamWriter value(byte[] value) throws IOException {
+		if (value == null)
+			return nullValue();
+		return value(Base64.encodeToString(value, Base64.NO_WRAP));
+	}
+
+	@Override
+	public JsonStreamWriter value(EncodedValue value) throws IOException {
+		return rawValue(value.getJson());
+	}
+
+	@Override
+	public JsonStreamWriter value(Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL)
+			return nullValue();
+		if (value instanceof String)
+			return value((String) value);
+		if (value instanceof Boolean)
+			return value(((Boolean) value).booleanValue());
+		if (value instanceof Double || value instanceof Float)
+			return value(((Number) value).doubleValue());
+		if (value instanceof Number)
+			return value(((Number) value).longValue());
+		if (value instanceof byte[])
+			return value((byte[]) value);
+		if (value instanceof JSONObject || value instanceof JSONArray)
+			return rawValue(value.toString());
+		if (value instanceof EncodedValue)
+			return value((EncodedValue) value);
+		if (value instanceof JsonWritable) {
+			((JsonWritable) value).writeJson(this);
+			return this;
+		}
+
+		return value(value.toString());
+	}
+
+	@Override
+	public JsonStreamWriter nullValue() throws IOException {
+		beforeValue();
+		m_out.write("null");
+		return this;
+	}
+
+	/**
+	 * Write a value that is already encoded as JSON, as-is.
+	 * 
+	 * @param json
+	 *            Valid JSON value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public JsonStreamWriter rawValue(String json) throws IOException {
+		beforeValue();
+		m_out.write(json);
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		m_out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_out.close();
+		if (m_depth > 1 || peek() != NONEMPTY_DOCUMENT)
+			throw new IOException("Incomplete document");
+	}
+
+	private JsonStreamWriter open(int empty, char bracket) throws IOException {
+		beforeValue();
+		if (m_depth == m_stack.length)
+			m_stack = Arrays.copyOf(m_stack, m_depth * 2);
+		m_stack[m_depth++] = empty;
+		m_out.write(bracket);
+		return this;
+	}
+
+	private JsonStreamWriter close(int empty, int nonempty, char bracket)
+			throws IOException {
+		int top = peek();
+		if (top != empty && top != nonempty)
+			throw new IllegalStateException("Nesting problem");
+
+		m_depth--;
+		m_out.write(bracket);
+		return this;
+	}
+
+	private int peek() {
+		return m_stack[m_depth - 1];
+	}
+
+	private void beforeValue() throws IOException {
+		switch (peek()) {
+		case EMPTY_DOCUMENT:
+			m_stack[m_depth - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case EMPTY_ARRAY:
+			m_stack[m_depth - 1] = NONEMPTY_ARRAY;
+			break;
+		case NONEMPTY_ARRAY:
+			m_out.write(',');
+			break;
+		case DANGLING_NAME:
+			m_stack[m_depth - 1] = NONEMPTY_OBJECT;
+			break;
+		default:
+			throw new IllegalStateException("Nesting problem");
+		}
+	}
+
+	private void string(String value) throws IOException {
+		m_out.write('"');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+				m_out.write('\\');
+				m_out.write(c);
+				break;
+			case '\t':
+				m_out.write("\\t");
+				break;
+			case '\b':
+				m_out.write("\\b");
+				break;
+			case '\n':
+				m_out.write("\\n");
+				break;
+			case '\r':
+				m_out.write("\\r");
+				break;
+			case '\f':
+				m_out.write("\\f");
+				break;
+			case '\u2028':
+			case '\u2029':
+				m_out.write(String.format("\\u%04x", (int) c));
+				break;
+			default:
+				if (c <= 0x1f)
+					m_out.write(String.format("\\u%04x", (int) c));
+				else
+					m_out.write(c);
+			}
+		}
+		m_out.write('"');
+	}
+
+}
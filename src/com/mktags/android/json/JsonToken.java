@@ -0,0 +1,28 @@
+package com.mktags.android.json;
+
+/**
+ * Type of the next token read by a {@link ValueReader}.
+ */
+public enum JsonToken {
+
+	BEGIN_ARRAY,
+
+	END_ARRAY,
+
+	BEGIN_OBJECT,
+
+	END_OBJECT,
+
+	NAME,
+
+	STRING,
+
+	NUMBER,
+
+	BOOLEAN,
+
+	NULL,
+
+	END_DOCUMENT
+
+}
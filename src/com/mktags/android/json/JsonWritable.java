@@ -0,0 +1,21 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+
+/**
+ * Object that can write itself as a single JSON value directly into a stream,
+ * in any encoding. Such objects can be passed to
+ * {@link ValueWriter#value(Object)} like any other value.
+ */
+public interface JsonWritable {
+
+	/**
+	 * Write this object as a single JSON value.
+	 * 
+	 * @param writer
+	 *            Writer to write the JSON value into
+	 * @throws IOException
+	 */
+	public void writeJson(ValueWriter writer) throws IOException;
+
+}
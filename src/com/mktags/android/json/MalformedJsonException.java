@@ -0,0 +1,23 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link ValueReader} when the stream doesn't contain a valid
+ * document.
+ */
+public class MalformedJsonException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param message
+	 *            Description of the syntax error
+	 */
+	public MalformedJsonException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.mktags.android.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Reads values of the JSON data model from a stream, one token at a time,
+ * without reading the whole document into a {@link JSONObject} first.
+ * {@link JsonStreamReader} reads them from JSON text, and
+ * {@link CborStreamReader} from CBOR, so the same decoding code handles both
+ * encodings.
+ * </p>
+ * 
+ * <p>
+ * Parts of the document that are small and should be handled as a whole can
+ * still be read into a {@link JSONObject} with {@link #readJsonObject()}.
+ * </p>
+ */
+public interface ValueReader extends Closeable {
+
+	/**
+	 * @return Type of the next token, without consuming it
+	 * @throws IOException
+	 */
+	public JsonToken peek() throws IOException;
+
+	/**
+	 * @return <code>true</code> if the current array or object has another
+	 *         element
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException;
+
+	/**
+	 * Consume the beginning of an array.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginArray() throws IOException;
+
+	/**
+	 * Consume the end of the current array.
+	 * 
+	 * @throws IOException
+	 */
+	public void endArray() throws IOException;
+
+	/**
+	 * Consume the beginning of an object.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginObject() throws IOException;
+
+	/**
+	 * Consume the end of the current object.
+	 * 
+	 * @throws IOException
+	 */
+	public void endObject() throws IOException;
+
+	/**
+	 * @return Name of the next property of the current object
+	 * @throws IOException
+	 */
+	public String nextName() throws IOException;
+
+	/**
+	 * @return The next string value, or number value as a string
+	 * @throws IOException
+	 */
+	public String nextString() throws IOException;
+
+	/**
+	 * @return The next binary value, decoded from a Base64 string in
+	 *         encodings that have no binary type
+	 * @throws IOException
+	 */
+	public byte[] nextBytes() throws IOException;
+
+	/**
+	 * @return The next boolean value
+	 * @throws IOException
+	 */
+	public boolean nextBoolean() throws IOException;
+
+	/**
+	 * Consume the next <code>null</code> value.
+	 * 
+	 * @throws IOException
+	 */
+	public void nextNull() throws IOException;
+
+	/**
+	 * @return The next numeric value, parsing strings if necessary
+	 * @throws IOException
+	 */
+	public double nextDouble() throws IOException;
+
+	/**
+	 * @return The next numeric value, parsing strings if necessary
+	 * @throws IOException
+	 */
+	public long nextLong() throws IOException;
+
+	/**
+	 * @return The next numeric value, parsing strings if necessary
+	 * @throws IOException
+	 */
+	public int nextInt() throws IOException;
+
+	/**
+	 * Skip the next value, including all nested arrays and objects.
+	 * 
+	 * @throws IOException
+	 */
+	public void skipValue() throws IOException;
+
+	/**
+	 * Read the next value as a whole.
+	 * 
+	 * @return {@link JSONObject}, {@link JSONArray}, {@link String},
+	 *         {@link Boolean}, {@link Long}, {@link Double} or
+	 *         {@link JSONObject#NULL}
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public Object readJsonValue() throws IOException, JSONException;
+
+	/**
+	 * Read the next object as a whole.
+	 * 
+	 * @return The object
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public JSONObject readJsonObject() throws IOException, JSONException;
+
+}
@@ -0,0 +1,155 @@
+package com.mktags.android.json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Writes values of the JSON data model directly into a stream, one token at a
+ * time. {@link JsonStreamWriter} writes them as JSON text, and
+ * {@link CborStreamWriter} as CBOR, so a {@link JsonWritable} can be written
+ * in either encoding.
+ * </p>
+ * 
+ * <p>
+ * Names and values are written by chaining calls:
+ * </p>
+ * 
+ * <pre>
+ * <code>
+ * 	writer.beginObject();
+ * 	writer.name(&quot;label&quot;).value(&quot;test label&quot;);
+ * 	writer.endObject();
+ * </code>
+ * </pre>
+ */
+public interface ValueWriter extends Closeable, Flushable {
+
+	/**
+	 * Begin a new array.
+	 * 
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter beginArray() throws IOException;
+
+	/**
+	 * End the current array.
+	 * 
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter endArray() throws IOException;
+
+	/**
+	 * Begin a new object.
+	 * 
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter beginObject() throws IOException;
+
+	/**
+	 * End the current object.
+	 * 
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter endObject() throws IOException;
+
+	/**
+	 * Write the name of the next property of the current object.
+	 * 
+	 * @param name
+	 *            Name of the property
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter name(String name) throws IOException;
+
+	/**
+	 * Write a string value.
+	 * 
+	 * @param value
+	 *            The value or <code>null</code>
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(String value) throws IOException;
+
+	/**
+	 * Write a boolean value.
+	 * 
+	 * @param value
+	 *            The value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(boolean value) throws IOException;
+
+	/**
+	 * Write a numeric value.
+	 * 
+	 * @param value
+	 *            The value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(long value) throws IOException;
+
+	/**
+	 * Write a numeric value.
+	 * 
+	 * @param value
+	 *            A finite value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(double value) throws IOException;
+
+	/**
+	 * Write a binary value, as a Base64 string in encodings that have no
+	 * binary type.
+	 * 
+	 * @param value
+	 *            The value or <code>null</code>
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(byte[] value) throws IOException;
+
+	/**
+	 * Write a value that was encoded ahead of time, copying its encoding in
+	 * the format of this writer as-is.
+	 * 
+	 * @param value
+	 *            The value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(EncodedValue value) throws IOException;
+
+	/**
+	 * Write a value of any type supported by {@link JSONObject}: strings,
+	 * booleans, numbers, <code>null</code> or JSON objects and arrays, or a
+	 * byte array. Values that are {@link JsonWritable} write themselves.
+	 * 
+	 * @param value
+	 *            The value
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter value(Object value) throws IOException;
+
+	/**
+	 * Write a <code>null</code> value.
+	 * 
+	 * @return This writer
+	 * @throws IOException
+	 */
+	public ValueWriter nullValue() throws IOException;
+
+}
@@ -1,5 +1,8 @@
 package com.mktags.android.tags;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -7,6 +10,8 @@ import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.util.Base64;
 
+import com.mktags.android.json.ValueWriter;
+
 /**
  * Descriptor for a raw tag defined manually using NDEF contained in
  * {@link NdefMessage}. The NDEF format is thoroughly validated on the server
@@ -14,7 +19,8 @@ import android.util.Base64;
  */
 public class RawTagDescriptor extends TagDescriptor {
 
-	private byte[] m_data;
+	private final byte[] m_data;
+	private final int m_hash;
 
 	/**
 	 * Constructor.
@@ -58,11 +64,29 @@ public class RawTagDescriptor extends TagDescriptor {
 	 * @param label
 	 *            Label to be printed on the tag itself for identification
 	 * @param ndef
-	 *            Actual bytes of a NDEF message
+	 *            Actual bytes of a NDEF message, which are copied
 	 */
 	public RawTagDescriptor(String label, byte[] ndef) {
 		super(label);
-		m_data = ndef;
+		m_data = ndef.clone();
+		m_hash = 31 * baseHash("raw") + Arrays.hashCode(m_data);
+	}
+
+	@Override
+	public int hashCode() {
+		return m_hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (o == null || o.getClass() != getClass())
+			return false;
+
+		RawTagDescriptor other = (RawTagDescriptor) o;
+		return m_hash == other.m_hash && baseEquals(other)
+				&& Arrays.equals(m_data, other.m_data);
 	}
 
 	@Override
@@ -72,4 +96,11 @@ public class RawTagDescriptor extends TagDescriptor {
 		return json;
 	}
 
+	@Override
+	protected void writeProperties(ValueWriter writer)
+			throws IOException {
+		writeBaseJson(writer, "raw");
+		writer.name("data_raw").value(m_data);
+	}
+
 }
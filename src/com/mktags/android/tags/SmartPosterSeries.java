@@ -0,0 +1,184 @@
+package com.mktags.android.tags;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import android.net.Uri;
+
+import com.mktags.android.json.ValueWriter;
+
+/**
+ * <p>
+ * Series of smart poster tags with serial numbers, generated from a template
+ * instead of being held in memory. Every tag of the series gets its serial
+ * number formatted into its label, title and URI, for example:
+ * </p>
+ * 
+ * <pre>
+ * <code>
+ * 	new SmartPosterSeries(&quot;ASSET-%06d&quot;, &quot;Asset %d&quot;,
+ * 			&quot;http://assets.example.com/%06d&quot;, 1, 100000);
+ * </code>
+ * </pre>
+ * 
+ * <p>
+ * Descriptors are created one at a time while iterating or writing JSON, so
+ * the memory used doesn't grow with the size of the series. The patterns use
+ * the syntax of {@link String#format(String, Object...)} and get the serial
+ * number as their only argument. A series can be passed instead of a
+ * {@link TagDescriptorList} to the price and buy calls of
+ * {@link com.mktags.android.Mktags}.
+ * </p>
+ */
+public class SmartPosterSeries implements TagDescriptorSource {
+
+	private final String m_labelPattern;
+	private final String m_titlePattern;
+	private final String m_uriPattern;
+	private final long m_first;
+	private final long m_last;
+	private final int m_size;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param labelPattern
+	 *            Pattern of the label to be printed on every tag
+	 * @param titlePattern
+	 *            Pattern of the title displayed when a tag is touched, or
+	 *            <code>null</code>
+	 * @param uriPattern
+	 *            Pattern of the URI every tag redirects to
+	 * @param first
+	 *            Serial number of the first tag
+	 * @param last
+	 *            Serial number of the last tag, inclusive
+	 * @throws IllegalArgumentException
+	 *             If <code>last</code> is before <code>first</code>, or the
+	 *             series has more than <code>Integer.MAX_VALUE</code> tags
+	 */
+	public SmartPosterSeries(String labelPattern, String titlePattern,
+			String uriPattern, long first, long last) {
+		// the difference overflows to a negative value for very wide ranges
+		if (last < first || last - first < 0
+				|| last - first >= Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid serial number range");
+
+		m_labelPattern = labelPattern;
+		m_titlePattern = titlePattern;
+		m_uriPattern = uriPattern;
+		m_first = first;
+		m_last = last;
+		m_size = (int) (last - first + 1);
+	}
+
+	/**
+	 * @return Pattern of the label of every tag
+	 */
+	public String getLabelPattern() {
+		return m_labelPattern;
+	}
+
+	/**
+	 * @return Pattern of the title of every tag, or <code>null</code>
+	 */
+	public String getTitlePattern() {
+		return m_titlePattern;
+	}
+
+	/**
+	 * @return Pattern of the URI of every tag
+	 */
+	public String getUriPattern() {
+		return m_uriPattern;
+	}
+
+	/**
+	 * @return Serial number of the first tag
+	 */
+	public long getFirst() {
+		return m_first;
+	}
+
+	/**
+	 * @return Serial number of the last tag, inclusive
+	 */
+	public long getLast() {
+		return m_last;
+	}
+
+	/**
+	 * Generate the descriptor of a single tag of the series.
+	 * 
+	 * @param serial
+	 *            Serial number of the tag
+	 * @return The descriptor
+	 */
+	public SmartPosterTagDescriptor get(long serial) {
+		String title = m_titlePattern == null ? null : format(m_titlePattern,
+				serial);
+		return new SmartPosterTagDescriptor(format(m_labelPattern, serial),
+				title, Uri.parse(format(m_uriPattern, serial)));
+	}
+
+	@Override
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * The series is immutable, so it is its own snapshot.
+	 */
+	@Override
+	public TagDescriptorSource snapshot() {
+		return this;
+	}
+
+	/**
+	 * Every tag of the series is different, so there are no quantities.
+	 */
+	@Override
+	public TagDescriptorSource withQuantities() {
+		return this;
+	}
+
+	@Override
+	public void writeJson(ValueWriter writer) throws IOException {
+		writer.beginArray();
+		// counted, since the serial number can't pass Long.MAX_VALUE
+		for (int i = 0; i < m_size; i++)
+			get(m_first + i).writeJson(writer);
+		writer.endArray();
+	}
+
+	@Override
+	public Iterator<TagDescriptor> iterator() {
+		return new Iterator<TagDescriptor>() {
+			private int m_index;
+
+			@Override
+			public boolean hasNext() {
+				return m_index < m_size;
+			}
+
+			@Override
+			public TagDescriptor next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return get(m_first + m_index++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static String format(String pattern, long serial) {
+		return String.format(Locale.US, pattern, Long.valueOf(serial));
+	}
+
+}
@@ -1,10 +1,14 @@
 package com.mktags.android.tags;
 
+import java.io.IOException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.net.Uri;
 
+import com.mktags.android.json.ValueWriter;
+
 /**
  * Descriptor for a smart poster tag. A smart poster is a tag containing a URI
  * and optionally a title and an image for display. It may also contain several
@@ -14,8 +18,9 @@ import android.net.Uri;
  */
 public class SmartPosterTagDescriptor extends TagDescriptor {
 
-	private String m_title;
-	private String m_uri;
+	private final String m_title;
+	private final String m_uri;
+	private final int m_hash;
 
 	/**
 	 * Constructor.
@@ -33,6 +38,29 @@ public class SmartPosterTagDescriptor extends TagDescriptor {
 		super(label);
 		m_title = title;
 		m_uri = uri.toString();
+
+		int hash = baseHash("smart_poster");
+		hash = 31 * hash + (m_title == null ? 0 : m_title.hashCode());
+		m_hash = 31 * hash + m_uri.hashCode();
+	}
+
+	@Override
+	public int hashCode() {
+		return m_hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (o == null || o.getClass() != getClass())
+			return false;
+
+		SmartPosterTagDescriptor other = (SmartPosterTagDescriptor) o;
+		return m_hash == other.m_hash
+				&& baseEquals(other)
+				&& (m_title == null ? other.m_title == null : m_title
+						.equals(other.m_title)) && m_uri.equals(other.m_uri);
 	}
 
 	@Override
@@ -43,4 +71,14 @@ public class SmartPosterTagDescriptor extends TagDescriptor {
 		return json;
 	}
 
+	@Override
+	protected void writeProperties(ValueWriter writer)
+			throws IOException {
+		writeBaseJson(writer, "smart_poster");
+		// JSONObject drops null values, so the key is left out like in toJson()
+		if (m_title != null)
+			writer.name("data_sp_title").value(m_title);
+		writer.name("data_sp_url").value(m_uri);
+	}
+
 }
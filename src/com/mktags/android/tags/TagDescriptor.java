@@ -1,14 +1,29 @@
 package com.mktags.android.tags;
 
+import java.io.IOException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.mktags.android.json.EncodedValue;
+import com.mktags.android.json.ValueWriter;
+import com.mktags.android.json.JsonWritable;
+
 /**
+ * <p>
  * Tag descriptor holding all the information required by the API to buy a tag.
+ * </p>
+ * 
+ * <p>
+ * Descriptors are immutable values, so they can be shared between threads and
+ * used as keys. Their hash code is computed once when they are created, and
+ * two descriptors are equal if they have the same type, label and payload.
+ * </p>
  */
-public abstract class TagDescriptor {
+public abstract class TagDescriptor implements JsonWritable {
 
-	private String m_label;
+	private final String m_label;
+	private final EncodedValue m_encoded = new EncodedValue(this);
 
 	/**
 	 * Constructor.
@@ -35,6 +50,102 @@ public abstract class TagDescriptor {
 	 */
 	public abstract JSONObject toJson() throws JSONException;
 
+	/**
+	 * Write the tag descriptor as JSON directly into a stream. The written
+	 * JSON is equivalent to the one returned by {@link #toJson()}.
+	 * 
+	 * @param writer
+	 *            Writer to write the JSON object into
+	 * @throws IOException
+	 */
+	@Override
+	public void writeJson(ValueWriter writer) throws IOException {
+		writeJson(writer, 1);
+	}
+
+	/**
+	 * Write the tag descriptor directly into a stream, along with the number
+	 * of identical tags it stands for.
+	 * 
+	 * @param writer
+	 *            Writer to write the object into
+	 * @param quantity
+	 *            Number of identical tags, only written when greater than 1
+	 * @throws IOException
+	 */
+	public void writeJson(ValueWriter writer, int quantity)
+			throws IOException {
+		writer.beginObject();
+		writeProperties(writer);
+		if (quantity > 1)
+			writer.name("quantity").value(quantity);
+		writer.endObject();
+	}
+
+	/**
+	 * Write the properties of the descriptor into an object already begun.
+	 * Implementations start with {@link #writeBaseJson}.
+	 * 
+	 * @param writer
+	 *            Writer to write the properties into
+	 * @throws IOException
+	 */
+	protected abstract void writeProperties(ValueWriter writer)
+			throws IOException;
+
+	/**
+	 * Get the descriptor as written by {@link #writeJson(ValueWriter)}. It is
+	 * encoded on first use in every format and cached for the life of the
+	 * descriptor.
+	 * 
+	 * @return The encoded descriptor
+	 */
+	public EncodedValue getEncoded() {
+		return m_encoded;
+	}
+
+	/**
+	 * @return The JSON object written by {@link #writeJson(ValueWriter)},
+	 *         encoded on the first call and cached
+	 */
+	public String getEncodedJson() {
+		return m_encoded.getJson();
+	}
+
+	/**
+	 * Must be consistent with {@link #equals(Object)} and computed only once,
+	 * when the descriptor is created.
+	 */
+	@Override
+	public abstract int hashCode();
+
+	/**
+	 * Compare the type, label and payload of the descriptors.
+	 */
+	@Override
+	public abstract boolean equals(Object o);
+
+	/**
+	 * @param type
+	 *            Type of the descriptor, as passed to {@link #baseJson}
+	 * @return Hash of the type and the label, to be combined with the hash of
+	 *         the payload
+	 */
+	protected int baseHash(String type) {
+		int labelHash = m_label == null ? 0 : m_label.hashCode();
+		return 31 * type.hashCode() + labelHash;
+	}
+
+	/**
+	 * @param other
+	 *            Descriptor of the same class
+	 * @return <code>true</code> if both descriptors have the same label
+	 */
+	protected boolean baseEquals(TagDescriptor other) {
+		return m_label == null ? other.m_label == null : m_label
+				.equals(other.m_label);
+	}
+
 	protected JSONObject baseJson(String type) throws JSONException {
 		JSONObject json = new JSONObject();
 		json.put("data_type", type);
@@ -43,4 +154,11 @@ public abstract class TagDescriptor {
 		return json;
 	}
 
+	protected void writeBaseJson(ValueWriter writer, String type)
+			throws IOException {
+		writer.name("data_type").value(type);
+		if (m_label != null)
+			writer.name("label").value(m_label);
+	}
+
 }
@@ -1,25 +1,65 @@
 package com.mktags.android.tags;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import com.mktags.android.json.ValueWriter;
+
 /**
- * A collection of tag descriptors that can be converted to {@link JSONArray}
- * for any API's <code>tags</code> parameter.
+ * <p>
+ * A list of tag descriptors that can be converted to {@link JSONArray} for any
+ * API's <code>tags</code> parameter.
+ * </p>
+ * 
+ * <p>
+ * Like any list, every tag added is an element of its own, counted by
+ * {@link #size()} and reached by index. A bulk order of many identical tags
+ * can be added at once with {@link #add(TagDescriptor, int)}, which keeps them
+ * in a single entry with a quantity. The entry is written once per tag, unless
+ * written through {@link #withQuantities()}. Then it is written once with its
+ * <code>quantity</code>, so the order is as small as an order of one.
+ * </p>
+ * 
+ * <p>
+ * Every descriptor caches its own encoded JSON, so editing a single tag of a
+ * large selection and pricing it again only encodes the edited tag.
+ * </p>
  */
-public class TagDescriptorList implements Iterable<TagDescriptor> {
+public class TagDescriptorList implements TagDescriptorSource {
 
-	private Collection<TagDescriptor> m_tags;
+	private List<Entry> m_entries;
+	private int m_size;
+	// number of entries with a quantity over 1, indexes match entries if none
+	private int m_bulkEntries;
+	// offset of the tag in the entry found by the last call to entryOf
+	private int m_offset;
 
 	/**
 	 * Constructor.
 	 */
 	public TagDescriptorList() {
-		m_tags = new LinkedList<TagDescriptor>();
+		m_entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Constructor. Copy the tag descriptors of another list. The descriptors
+	 * themselves are shared, along with their encoded JSON.
+	 * 
+	 * @param tags
+	 *            List to copy
+	 */
+	public TagDescriptorList(TagDescriptorList tags) {
+		m_entries = new ArrayList<Entry>(tags.m_entries.size());
+		for (Entry entry : tags.m_entries)
+			m_entries.add(new Entry(entry.tag, entry.quantity));
+		m_size = tags.m_size;
+		m_bulkEntries = tags.m_bulkEntries;
 	}
 
 	/**
@@ -28,7 +68,131 @@ public class TagDescriptorList implements Iterable<TagDescriptor> {
 	 * @param tag
 	 */
 	public void add(TagDescriptor tag) {
-		m_tags.add(tag);
+		m_entries.add(new Entry(tag, 1));
+		m_size++;
+	}
+
+	/**
+	 * Add several identical tags to the end of the collection, as a single
+	 * entry with a quantity.
+	 * 
+	 * @param tag
+	 *            Descriptor of the tags
+	 * @param quantity
+	 *            Number of tags to add
+	 */
+	public void add(TagDescriptor tag, int quantity) {
+		if (quantity < 1)
+			throw new IllegalArgumentException("quantity < 1");
+
+		m_entries.add(new Entry(tag, quantity));
+		m_size += quantity;
+		if (quantity > 1)
+			m_bulkEntries++;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the tag
+	 * @return The tag descriptor at the index
+	 */
+	public TagDescriptor get(int index) {
+		return m_entries.get(entryOf(index)).tag;
+	}
+
+	/**
+	 * Replace a single tag. A tag of a bulk entry is split out of the entry.
+	 * 
+	 * @param index
+	 *            Index of the tag to replace
+	 * @param tag
+	 *            The new tag descriptor
+	 * @return The replaced tag descriptor
+	 */
+	public TagDescriptor set(int index, TagDescriptor tag) {
+		int i = entryOf(index);
+		Entry entry = m_entries.get(i);
+		if (entry.quantity == 1) {
+			m_entries.set(i, new Entry(tag, 1));
+			return entry.tag;
+		}
+
+		// split the entry around the replaced tag
+		int before = m_offset;
+		int after = entry.quantity - before - 1;
+		m_entries.remove(i);
+		m_bulkEntries--;
+		if (after > 0)
+			insert(i, entry.tag, after);
+		insert(i, tag, 1);
+		if (before > 0)
+			insert(i, entry.tag, before);
+		return entry.tag;
+	}
+
+	/**
+	 * Remove a single tag.
+	 * 
+	 * @param index
+	 *            Index of the tag to remove
+	 * @return The removed tag descriptor
+	 */
+	public TagDescriptor remove(int index) {
+		return removeOne(entryOf(index));
+	}
+
+	/**
+	 * Remove the first occurrence of a tag.
+	 * 
+	 * @param tag
+	 *            Descriptor of the tag to remove
+	 * @return <code>true</code> if the tag was found
+	 */
+	public boolean remove(TagDescriptor tag) {
+		for (int i = 0; i < m_entries.size(); i++) {
+			if (m_entries.get(i).tag.equals(tag)) {
+				removeOne(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all the tag descriptors.
+	 */
+	public void clear() {
+		m_entries.clear();
+		m_size = 0;
+		m_bulkEntries = 0;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the entry
+	 * @return The tag descriptor of the entry
+	 */
+	public TagDescriptor getEntryTag(int index) {
+		return m_entries.get(index).tag;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the entry
+	 * @return Number of tags of the entry
+	 */
+	public int getQuantity(int index) {
+		return m_entries.get(index).quantity;
+	}
+
+	/**
+	 * @return Number of tags of every entry, in order
+	 */
+	public int[] getQuantities() {
+		int[] quantities = new int[m_entries.size()];
+		for (int i = 0; i < quantities.length; i++)
+			quantities[i] = m_entries.get(i).quantity;
+		return quantities;
 	}
 
 	/**
@@ -40,26 +204,223 @@ public class TagDescriptorList implements Iterable<TagDescriptor> {
 	 */
 	public JSONArray toJson() throws JSONException {
 		JSONArray json = new JSONArray();
-		for (Iterator<TagDescriptor> i = m_tags.iterator(); i.hasNext();) {
-			TagDescriptor tag = i.next();
-			json.put(tag.toJson());
+		for (Entry entry : m_entries) {
+			for (int i = 0; i < entry.quantity; i++)
+				json.put(entry.tag.toJson());
 		}
 		return json;
 	}
 
 	/**
-	 * @return Number of tag descriptors in the collection
+	 * Write tags in collection as a JSON array directly into a stream. The
+	 * written JSON is equivalent to the one returned by {@link #toJson()}, but
+	 * every tag descriptor is only encoded once and then copied as-is.
+	 * 
+	 * @param writer
+	 *            Writer to write the JSON array into
+	 * @throws IOException
+	 */
+	@Override
+	public void writeJson(ValueWriter writer) throws IOException {
+		writeJson(writer, false);
+	}
+
+	/**
+	 * Write tags in collection as a JSON array directly into a stream.
+	 * 
+	 * @param writer
+	 *            Writer to write the JSON array into
+	 * @param quantities
+	 *            <code>true</code> to write bulk entries once with their
+	 *            quantity, <code>false</code> to write them once per tag
+	 * @throws IOException
+	 */
+	public void writeJson(ValueWriter writer, boolean quantities)
+			throws IOException {
+		writer.beginArray();
+		for (Entry entry : m_entries) {
+			if (quantities && entry.quantity > 1) {
+				entry.tag.writeJson(writer, entry.quantity);
+				continue;
+			}
+
+			int copies = quantities ? 1 : entry.quantity;
+			for (int i = 0; i < copies; i++)
+				writer.value(entry.tag.getEncoded());
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * @return Number of tags in the collection, counting every quantity
 	 */
+	@Override
 	public int size() {
-		return m_tags.size();
+		return m_size;
+	}
+
+	/**
+	 * @return A copy of the list
+	 */
+	@Override
+	public TagDescriptorSource snapshot() {
+		return new TagDescriptorList(this);
+	}
+
+	/**
+	 * @return View of the list that writes bulk entries with their quantity
+	 */
+	@Override
+	public TagDescriptorSource withQuantities() {
+		return m_bulkEntries == 0 ? this : new QuantityView(this);
+	}
+
+	/**
+	 * @return Number of entries, counting a bulk entry added with
+	 *         {@link #add(TagDescriptor, int)} once
+	 */
+	public int getEntryCount() {
+		return m_entries.size();
 	}
 
 	/**
-	 * @return Iterator over all the tag descriptors in the collection
+	 * @return Iterator over all the tags in the collection, returning the
+	 *         descriptor of a bulk entry as many times as its quantity
 	 */
 	@Override
 	public Iterator<TagDescriptor> iterator() {
-		return m_tags.iterator();
+		return new TagIterator();
+	}
+
+	/**
+	 * Find the entry of a tag, and its offset in {@link #m_offset}.
+	 */
+	private int entryOf(int index) {
+		if (index < 0 || index >= m_size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ m_size);
+
+		m_offset = 0;
+		if (m_bulkEntries == 0)
+			return index;
+
+		int i = 0;
+		while (index >= m_entries.get(i).quantity) {
+			index -= m_entries.get(i).quantity;
+			i++;
+		}
+		m_offset = index;
+		return i;
+	}
+
+	private void insert(int i, TagDescriptor tag, int quantity) {
+		m_entries.add(i, new Entry(tag, quantity));
+		if (quantity > 1)
+			m_bulkEntries++;
+	}
+
+	private TagDescriptor removeOne(int i) {
+		Entry entry = m_entries.get(i);
+		if (entry.quantity == 1)
+			m_entries.remove(i);
+		else if (--entry.quantity == 1)
+			m_bulkEntries--;
+		m_size--;
+		return entry.tag;
+	}
+
+	private static class Entry {
+		public final TagDescriptor tag;
+		public int quantity;
+
+		public Entry(TagDescriptor tag, int quantity) {
+			this.tag = tag;
+			this.quantity = quantity;
+		}
+	}
+
+	/**
+	 * Writes the bulk entries of a list with their quantity.
+	 */
+	private static class QuantityView implements TagDescriptorSource {
+
+		private TagDescriptorList m_tags;
+
+		public QuantityView(TagDescriptorList tags) {
+			m_tags = tags;
+		}
+
+		@Override
+		public Iterator<TagDescriptor> iterator() {
+			return m_tags.iterator();
+		}
+
+		@Override
+		public void writeJson(ValueWriter writer) throws IOException {
+			m_tags.writeJson(writer, true);
+		}
+
+		@Override
+		public int size() {
+			return m_tags.size();
+		}
+
+		@Override
+		public TagDescriptorSource snapshot() {
+			return new QuantityView(new TagDescriptorList(m_tags));
+		}
+
+		@Override
+		public TagDescriptorSource withQuantities() {
+			return this;
+		}
+
+	}
+
+	private class TagIterator implements Iterator<TagDescriptor> {
+
+		private int m_entry;
+		private int m_repeat;
+		private boolean m_removable;
+
+		@Override
+		public boolean hasNext() {
+			return m_entry < m_entries.size();
+		}
+
+		@Override
+		public TagDescriptor next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			Entry entry = m_entries.get(m_entry);
+			if (++m_repeat >= entry.quantity) {
+				m_entry++;
+				m_repeat = 0;
+			}
+			m_removable = true;
+			return entry.tag;
+		}
+
+		@Override
+		public void remove() {
+			if (!m_removable)
+				throw new IllegalStateException();
+			m_removable = false;
+
+			if (m_repeat == 0) {
+				// the last copy of the previous entry, which may go away
+				int i = m_entry - 1;
+				if (m_entries.get(i).quantity == 1)
+					m_entry = i;
+				removeOne(i);
+			} else {
+				// an earlier copy of the current entry, which stays
+				removeOne(m_entry);
+				m_repeat--;
+			}
+		}
+
 	}
 
 }
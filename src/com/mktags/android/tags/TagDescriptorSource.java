@@ -0,0 +1,43 @@
+package com.mktags.android.tags;
+
+import com.mktags.android.json.JsonWritable;
+
+/**
+ * <p>
+ * Source of the tag descriptors of a call, that can be iterated and written
+ * as the JSON array of the <code>tags</code> parameter of any API.
+ * </p>
+ * 
+ * <p>
+ * {@link TagDescriptorList} holds descriptors in memory, while
+ * {@link SmartPosterSeries} generates them on the fly from a template.
+ * </p>
+ */
+public interface TagDescriptorSource extends Iterable<TagDescriptor>,
+		JsonWritable {
+
+	/**
+	 * @return Number of tags, counting every quantity
+	 */
+	public int size();
+
+	/**
+	 * Get a copy of the source that doesn't change when the source does, so
+	 * it can be encoded in the background. Immutable sources may return
+	 * themselves.
+	 * 
+	 * @return The snapshot
+	 */
+	public TagDescriptorSource snapshot();
+
+	/**
+	 * Get a view of the source that writes every bulk entry once, with a
+	 * <code>quantity</code> field, instead of once per tag. Only use it with a
+	 * server version known to honour that field, since a server that ignores
+	 * it would ship a single tag for the whole entry.
+	 * 
+	 * @return The view, or this source if it has no bulk entries
+	 */
+	public TagDescriptorSource withQuantities();
+
+}
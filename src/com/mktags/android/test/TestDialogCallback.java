@@ -21,7 +21,6 @@ import com.mktags.android.tags.TagDescriptorList;
  */
 public class TestDialogCallback extends TestCallback {
 
-	NdefDispatcher m_dispatcher;
 	private NdefMessage[] m_processedTags;
 	private ArrayList<String> m_labels;
 
@@ -37,7 +36,6 @@ public class TestDialogCallback extends TestCallback {
 	 */
 	public TestDialogCallback(Context context, TagDescriptorList tags) {
 		super(context);
-		m_dispatcher = new NdefDispatcher(getContext());
 		m_labels = new ArrayList<String>(tags.size());
 		for (TagDescriptor tag : tags)
 			m_labels.add(tag.getLabel());
@@ -45,9 +43,13 @@ public class TestDialogCallback extends TestCallback {
 
 	@Override
 	protected void onResult(final NdefMessage[] tags) {
+		Context context = getContext();
+		if (context == null)
+			return;
+
 		if (tags.length != m_labels.size()) {
 			UiUtils.alert(
-					getContext(),
+					context,
 					String.format("Got bad response from server."
 							+ "Number of tags sent is different than "
 							+ "number of tags recieved [%d != %d].",
@@ -60,23 +62,36 @@ public class TestDialogCallback extends TestCallback {
 		String[] labels = new String[m_labels.size()];
 		m_labels.toArray(labels);
 
-		AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
+		AlertDialog.Builder builder = new AlertDialog.Builder(context);
 		builder.setTitle("Choose tag to simulate");
-		builder.setItems(labels, new ListClickListener());
-		builder.setView(new ListView(getContext()));
+		builder.setItems(labels, new ListClickListener(context));
+		builder.setView(new ListView(context));
 		builder.setPositiveButton("Done", new UiUtils.DoneButtonListener());
 		builder.show();
 	}
 
+	/**
+	 * Lives only as long as the dialog, so it may hold the context strongly.
+	 */
 	private class ListClickListener implements OnClickListener {
+
+		private Context m_context;
+		private NdefDispatcher m_dispatcher;
+
+		public ListClickListener(Context context) {
+			m_context = context;
+			m_dispatcher = new NdefDispatcher(context);
+		}
+
 		@Override
 		public void onClick(DialogInterface dialog, int which) {
 			if (m_dispatcher.dispatchNdef(m_processedTags[which]))
 				return;
 
-			UiUtils.alert(getContext(),
+			UiUtils.alert(m_context,
 					"Cannot find any app that accepts this tag");
 		}
+
 	}
 
 }
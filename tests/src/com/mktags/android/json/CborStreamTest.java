@@ -0,0 +1,244 @@
+package com.mktags.android.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.net.Uri;
+
+import com.mktags.android.tags.RawTagDescriptor;
+import com.mktags.android.tags.SmartPosterTagDescriptor;
+import com.mktags.android.tags.TagDescriptor;
+
+/**
+ * Round trips through {@link CborStreamWriter} and {@link CborStreamReader}.
+ */
+public class CborStreamTest extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamWriter writer = new CborStreamWriter(out);
+		writer.beginObject();
+		writer.name("string").value("a \"quoted\"\n\u00e9\u20ac");
+		writer.name("true").value(true);
+		writer.name("long").value(-1234567890123L);
+		writer.name("small").value(23);
+		writer.name("double").value(1.5);
+		writer.name("null").nullValue();
+		writer.name("bytes").value(new byte[] { 0, 1, (byte) 0xff });
+		writer.name("array").beginArray().value(1).value("two").endArray();
+		writer.endObject();
+		writer.flush();
+
+		CborStreamReader reader = read(out);
+		reader.beginObject();
+		assertEquals("string", reader.nextName());
+		assertEquals("a \"quoted\"\n\u00e9\u20ac", reader.nextString());
+		assertEquals("true", reader.nextName());
+		assertTrue(reader.nextBoolean());
+		assertEquals("long", reader.nextName());
+		assertEquals(-1234567890123L, reader.nextLong());
+		assertEquals("small", reader.nextName());
+		assertEquals(23, reader.nextInt());
+		assertEquals("double", reader.nextName());
+		assertEquals(1.5, reader.nextDouble(), 0);
+		assertEquals("null", reader.nextName());
+		assertEquals(JsonToken.NULL, reader.peek());
+		reader.nextNull();
+		assertEquals("bytes", reader.nextName());
+		assertTrue(Arrays.equals(new byte[] { 0, 1, (byte) 0xff },
+				reader.nextBytes()));
+		assertEquals("array", reader.nextName());
+		reader.beginArray();
+		assertEquals(1, reader.nextInt());
+		assertEquals("two", reader.nextString());
+		assertFalse(reader.hasNext());
+		reader.endArray();
+		reader.endObject();
+		assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+	}
+
+	public void testSkipValue() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamWriter writer = new CborStreamWriter(out);
+		writer.beginObject();
+		writer.name("skip").beginArray().beginObject().name("a").value(1)
+				.endObject().value("x").endArray();
+		writer.name("keep").value(3);
+		writer.endObject();
+		writer.flush();
+
+		CborStreamReader reader = read(out);
+		reader.beginObject();
+		assertEquals("skip", reader.nextName());
+		reader.skipValue();
+		assertEquals("keep", reader.nextName());
+		assertEquals(3, reader.nextInt());
+		reader.endObject();
+	}
+
+	public void testSameAsJson() throws Exception {
+		JSONObject json = new JSONObject(
+				"{\"a\":[1,-2,2.5,null,\"s\"],\"b\":{\"c\":false}}");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamWriter writer = new CborStreamWriter(out);
+		writer.value(json);
+		writer.flush();
+
+		assertEquals(json.toString(), read(out).readJsonObject().toString());
+	}
+
+	public void testEncodedValue() throws Exception {
+		TagDescriptor[] tags = {
+				new RawTagDescriptor("raw", new byte[] { 1, 2 }),
+				new SmartPosterTagDescriptor(null, "title",
+						Uri.parse("http://mktags.com/")) };
+
+		for (TagDescriptor tag : tags) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CborStreamWriter writer = new CborStreamWriter(out);
+			writer.beginArray().value(tag.getEncoded()).value(tag).endArray();
+			writer.flush();
+
+			CborStreamReader reader = read(out);
+			reader.beginArray();
+			JSONObject encoded = reader.readJsonObject();
+			JSONObject streamed = reader.readJsonObject();
+			reader.endArray();
+
+			StringWriter text = new StringWriter();
+			new JsonStreamWriter(text).value(tag).flush();
+			JSONObject json = new JsonStreamReader(new StringReader(
+					text.toString())).readJsonObject();
+			assertEquals(json.toString(), streamed.toString());
+			assertEquals(json.toString(), encoded.toString());
+		}
+	}
+
+	public void testSameDecoding() throws Exception {
+		ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+		StringWriter json = new StringWriter();
+		ValueWriter[] writers = { new CborStreamWriter(cbor),
+				new JsonStreamWriter(json) };
+		for (ValueWriter writer : writers) {
+			writer.beginObject();
+			writer.name("bytes").value(new byte[] { 4, 5 });
+			writer.name("base64").value("BgcI");
+			writer.name("number").value("42");
+			writer.endObject();
+			writer.flush();
+		}
+
+		ValueReader[] readers = { read(cbor),
+				new JsonStreamReader(new StringReader(json.toString())) };
+		for (ValueReader reader : readers) {
+			reader.beginObject();
+			assertEquals("bytes", reader.nextName());
+			assertTrue(Arrays.equals(new byte[] { 4, 5 }, reader.nextBytes()));
+			assertEquals("base64", reader.nextName());
+			assertTrue(Arrays.equals(new byte[] { 6, 7, 8 },
+					reader.nextBytes()));
+			assertEquals("number", reader.nextName());
+			assertEquals(42, reader.nextInt());
+			assertFalse(reader.hasNext());
+			reader.endObject();
+			assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+		}
+	}
+
+	public void testLongString() throws Exception {
+		byte[] bytes = new byte[100000];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamWriter writer = new CborStreamWriter(out);
+		writer.value(bytes);
+		writer.flush();
+
+		assertTrue(Arrays.equals(bytes, read(out).nextBytes()));
+	}
+
+	public void testIndefiniteStrings() throws Exception {
+		// {"ab": h'010203', "c": ""} with every string split in chunks
+		byte[] cbor = { (byte) 0xa2, 0x7f, 0x61, 'a', 0x61, 'b', (byte) 0xff,
+				0x5f, 0x42, 1, 2, 0x41, 3, (byte) 0xff, 0x61, 'c', 0x7f,
+				(byte) 0xff };
+		CborStreamReader reader = new CborStreamReader(
+				new ByteArrayInputStream(cbor));
+		reader.beginObject();
+		assertEquals("ab", reader.nextName());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, reader.nextBytes()));
+		assertEquals("c", reader.nextName());
+		assertEquals("", reader.nextString());
+		reader.endObject();
+		assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+	}
+
+	public void testInvalidChunk() throws Exception {
+		// text string with a byte string chunk
+		byte[] cbor = { 0x7f, 0x41, 'a', (byte) 0xff };
+		try {
+			new CborStreamReader(new ByteArrayInputStream(cbor)).nextString();
+			fail("Byte string chunk accepted in a text string");
+		} catch (MalformedJsonException e) {
+			// expected
+		}
+	}
+
+	public void testBogusLength() throws Exception {
+		// byte string claiming 2 GB, followed by only two bytes
+		byte[] cbor = { 0x5a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1,
+				2 };
+		try {
+			new CborStreamReader(new ByteArrayInputStream(cbor)).nextBytes();
+			fail("Bogus length accepted");
+		} catch (EOFException e) {
+			// expected, without allocating the claimed length
+		}
+	}
+
+	public void testTooLong() throws Exception {
+		// byte string claiming more than an array can hold
+		byte[] cbor = { 0x5b, 0, 0, 0, 1, 0, 0, 0, 0 };
+		try {
+			new CborStreamReader(new ByteArrayInputStream(cbor)).nextBytes();
+			fail("Length over 2 GB accepted");
+		} catch (MalformedJsonException e) {
+			// expected
+		}
+	}
+
+	public void testTruncated() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CborStreamWriter writer = new CborStreamWriter(out);
+		writer.value(new JSONArray("[1,2,3]"));
+		writer.flush();
+
+		byte[] cbor = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+		CborStreamReader reader = new CborStreamReader(
+				new ByteArrayInputStream(cbor));
+		reader.beginArray();
+		try {
+			while (reader.hasNext())
+				reader.nextInt();
+			fail("Truncated document accepted");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	private static CborStreamReader read(ByteArrayOutputStream out) {
+		return new CborStreamReader(new ByteArrayInputStream(
+				out.toByteArray()));
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.mktags.android.json;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.mktags.android.tags.RawTagDescriptor;
+import com.mktags.android.tags.TagDescriptor;
+
+/**
+ * Round trips through {@link JsonStreamWriter} and {@link JsonStreamReader}.
+ */
+public class JsonStreamTest extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		StringWriter out = new StringWriter();
+		JsonStreamWriter writer = new JsonStreamWriter(out);
+		writer.beginObject();
+		writer.name("string").value("a \"quoted\"\n\u00e9\u20ac");
+		writer.name("true").value(true);
+		writer.name("long").value(-1234567890123L);
+		writer.name("double").value(1.5);
+		writer.name("null").nullValue();
+		writer.name("bytes").value(new byte[] { 0, 1, (byte) 0xff });
+		writer.name("array").beginArray().value(1).value("two").endArray();
+		writer.endObject();
+		writer.flush();
+
+		JsonStreamReader reader = new JsonStreamReader(new StringReader(
+				out.toString()));
+		reader.beginObject();
+		assertEquals("string", reader.nextName());
+		assertEquals("a \"quoted\"\n\u00e9\u20ac", reader.nextString());
+		assertEquals("true", reader.nextName());
+		assertTrue(reader.nextBoolean());
+		assertEquals("long", reader.nextName());
+		assertEquals(-1234567890123L, reader.nextLong());
+		assertEquals("double", reader.nextName());
+		assertEquals(1.5, reader.nextDouble(), 0);
+		assertEquals("null", reader.nextName());
+		assertEquals(JsonToken.NULL, reader.peek());
+		reader.nextNull();
+		assertEquals("bytes", reader.nextName());
+		assertTrue(Arrays.equals(new byte[] { 0, 1, (byte) 0xff },
+				reader.nextBytes()));
+		assertEquals("array", reader.nextName());
+		reader.beginArray();
+		assertEquals(1, reader.nextInt());
+		assertEquals("two", reader.nextString());
+		assertFalse(reader.hasNext());
+		reader.endArray();
+		reader.endObject();
+		assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+	}
+
+	public void testSkipValue() throws Exception {
+		JsonStreamReader reader = new JsonStreamReader(new StringReader(
+				"{\"skip\":[{\"a\":[1,2]},\"x\"],\"keep\":3}"));
+		reader.beginObject();
+		assertEquals("skip", reader.nextName());
+		reader.skipValue();
+		assertEquals("keep", reader.nextName());
+		assertEquals(3, reader.nextInt());
+		reader.endObject();
+	}
+
+	public void testReadJsonObject() throws Exception {
+		JsonStreamReader reader = new JsonStreamReader(new StringReader(
+				"{\"a\":[1,2.5,null],\"b\":{\"c\":false}}"));
+		JSONObject json = reader.readJsonObject();
+		JSONArray a = json.getJSONArray("a");
+		assertEquals(1, a.getLong(0));
+		assertEquals(2.5, a.getDouble(1));
+		assertTrue(a.isNull(2));
+		assertFalse(json.getJSONObject("b").getBoolean("c"));
+	}
+
+	public void testEncodedValue() throws Exception {
+		TagDescriptor tag = new RawTagDescriptor("label", new byte[] { 1, 2 });
+
+		StringWriter out = new StringWriter();
+		JsonStreamWriter writer = new JsonStreamWriter(out);
+		writer.beginArray().value(tag.getEncoded()).value(tag).endArray();
+		writer.flush();
+
+		JSONArray json = new JSONArray(out.toString());
+		assertEquals(json.getJSONObject(0).toString(), json.getJSONObject(1)
+				.toString());
+		assertEquals(tag.toJson().toString(), json.getJSONObject(0)
+				.toString());
+	}
+
+	public void testMalformed() throws Exception {
+		JsonStreamReader reader = new JsonStreamReader(new StringReader(
+				"{\"a\" 1}"));
+		reader.beginObject();
+		try {
+			reader.nextName();
+			reader.nextInt();
+			fail("Missing ':' accepted");
+		} catch (MalformedJsonException e) {
+			// expected
+		}
+	}
+
+	public void testTruncated() throws Exception {
+		JsonStreamReader reader = new JsonStreamReader(new StringReader(
+				"[1,"));
+		reader.beginArray();
+		assertEquals(1, reader.nextInt());
+		try {
+			reader.nextInt();
+			fail("Truncated document accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
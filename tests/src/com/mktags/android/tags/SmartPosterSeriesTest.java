@@ -0,0 +1,105 @@
+package com.mktags.android.tags;
+
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+import com.mktags.android.json.JsonStreamWriter;
+
+/**
+ * Tests of {@link SmartPosterSeries}, which must describe the same tags as the
+ * equivalent {@link TagDescriptorList} without holding them.
+ */
+public class SmartPosterSeriesTest extends TestCase {
+
+	private static final String LABEL = "ASSET-%06d";
+	private static final String TITLE = "Asset %d";
+	private static final String URI = "http://assets.example.com/%06d";
+
+	public void testSize() {
+		assertEquals(1, series(5, 5).size());
+		assertEquals(100, series(1, 100).size());
+		assertEquals(Integer.MAX_VALUE, series(0, Integer.MAX_VALUE - 1)
+				.size());
+	}
+
+	public void testIteration() {
+		assertEquals("ASSET-000009 ASSET-000010 ASSET-000011 ",
+				labels(series(9, 11)));
+	}
+
+	public void testIterationEnd() {
+		Iterator<TagDescriptor> i = series(1, 1).iterator();
+		assertEquals("ASSET-000001", i.next().getLabel());
+		assertFalse(i.hasNext());
+		try {
+			i.next();
+			fail("Iterated past the end");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	public void testSameJsonAsList() throws Exception {
+		SmartPosterSeries series = series(1, 20);
+		TagDescriptorList list = new TagDescriptorList();
+		for (long serial = 1; serial <= 20; serial++)
+			list.add(series.get(serial));
+
+		assertEquals(list.size(), series.size());
+		assertEquals(labels(list), labels(series));
+		assertEquals(write(list).toString(), write(series).toString());
+		assertEquals(list.toJson().toString(), write(series).toString());
+	}
+
+	public void testLastSerial() throws Exception {
+		// the serial number can't be incremented past the end of this series
+		SmartPosterSeries series = series(Long.MAX_VALUE - 2, Long.MAX_VALUE);
+		assertEquals(3, series.size());
+		assertEquals(3, write(series).length());
+
+		int count = 0;
+		for (TagDescriptor tag : series)
+			assertEquals(series.get(Long.MAX_VALUE - 2 + count++).getLabel(),
+					tag.getLabel());
+		assertEquals(3, count);
+	}
+
+	public void testInvalidRanges() {
+		long[][] ranges = { { 2, 1 }, { 0, Integer.MAX_VALUE },
+				{ -1, Long.MAX_VALUE }, { Long.MIN_VALUE, 0 },
+				{ Long.MIN_VALUE, Long.MAX_VALUE } };
+		for (long[] range : ranges) {
+			try {
+				series(range[0], range[1]);
+				fail("Range " + range[0] + ".." + range[1] + " accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	private static SmartPosterSeries series(long first, long last) {
+		return new SmartPosterSeries(LABEL, TITLE, URI, first, last);
+	}
+
+	private static String labels(TagDescriptorSource tags) {
+		StringBuilder labels = new StringBuilder();
+		for (TagDescriptor tag : tags)
+			labels.append(tag.getLabel()).append(' ');
+		return labels.toString();
+	}
+
+	private static JSONArray write(TagDescriptorSource tags) throws Exception {
+		StringWriter out = new StringWriter();
+		JsonStreamWriter writer = new JsonStreamWriter(out);
+		tags.writeJson(writer);
+		writer.flush();
+		return new JSONArray(out.toString());
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.mktags.android.tags;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.net.Uri;
+
+import com.mktags.android.json.JsonStreamWriter;
+
+/**
+ * Tests of {@link TagDescriptorList}, where every tag is an element even when
+ * added in bulk, and bulk entries are only collapsed when asked to.
+ */
+public class TagDescriptorListTest extends TestCase {
+
+	private TagDescriptor m_a = new RawTagDescriptor("a", new byte[] { 1 });
+	private TagDescriptor m_b = new RawTagDescriptor("b", new byte[] { 2 });
+	private TagDescriptor m_c = new RawTagDescriptor("c", new byte[] { 3 });
+
+	public void testAddKeepsEveryTag() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_a);
+		list.add(m_b);
+
+		// identical tags added one by one are never collapsed
+		assertEquals(3, list.size());
+		assertEquals(3, list.getEntryCount());
+		assertEquals("aab", labels(list));
+		assertTrue(Arrays.equals(new int[] { 1, 1, 1 }, list.getQuantities()));
+	}
+
+	public void testAddInBulk() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_b, 3);
+		list.add(m_c);
+
+		assertEquals(5, list.size());
+		assertEquals(3, list.getEntryCount());
+		assertSame(m_b, list.getEntryTag(1));
+		assertEquals(3, list.getQuantity(1));
+		assertTrue(Arrays.equals(new int[] { 1, 3, 1 }, list.getQuantities()));
+
+		StringBuilder labels = new StringBuilder();
+		for (int i = 0; i < list.size(); i++)
+			labels.append(list.get(i).getLabel());
+		assertEquals("abbbc", labels.toString());
+		assertEquals("abbbc", labels(list));
+	}
+
+	public void testAddInvalidQuantity() {
+		try {
+			new TagDescriptorList().add(m_a, 0);
+			fail("Quantity 0 accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testIndexOutOfBounds() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a, 2);
+		try {
+			list.get(2);
+			fail("Index past the end accepted");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testSetSplitsBulkEntry() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a, 4);
+
+		assertSame(m_a, list.set(1, m_b));
+		assertEquals("abaa", labels(list));
+		assertEquals(4, list.size());
+		assertTrue(Arrays.equals(new int[] { 1, 1, 2 }, list.getQuantities()));
+
+		assertSame(m_a, list.set(0, m_c));
+		assertEquals("cbaa", labels(list));
+		assertSame(m_a, list.set(3, m_c));
+		assertEquals("cbac", labels(list));
+	}
+
+	public void testRemoveOneOfBulkEntry() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_b, 3);
+
+		assertSame(m_b, list.remove(2));
+		assertEquals("abb", labels(list));
+		assertEquals(2, list.getQuantity(1));
+
+		assertTrue(list.remove(m_b));
+		assertTrue(list.remove(m_b));
+		assertEquals("a", labels(list));
+		assertEquals(1, list.getEntryCount());
+		assertFalse(list.remove(m_b));
+	}
+
+	public void testIteratorRemove() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_b, 3);
+		list.add(m_c);
+
+		Iterator<TagDescriptor> i = list.iterator();
+		int seen = 0;
+		while (i.hasNext()) {
+			if (i.next() == m_b && seen++ != 1)
+				i.remove();
+		}
+		assertEquals("abc", labels(list));
+		assertEquals(3, list.size());
+
+		i = list.iterator();
+		while (i.hasNext()) {
+			i.next();
+			i.remove();
+		}
+		assertEquals(0, list.size());
+		assertEquals(0, list.getEntryCount());
+	}
+
+	public void testCopy() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a, 2);
+		TagDescriptorList copy = new TagDescriptorList(list);
+		list.remove(0);
+
+		assertEquals("aa", labels(copy));
+		assertEquals(1, copy.getEntryCount());
+	}
+
+	public void testWriteJsonPerTag() throws Exception {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_b, 2);
+
+		JSONArray json = write(list);
+		assertEquals(list.toJson().toString(), json.toString());
+		assertEquals(3, json.length());
+		assertFalse(json.getJSONObject(1).has("quantity"));
+		assertFalse(json.getJSONObject(2).has("quantity"));
+	}
+
+	public void testWriteJsonWithQuantities() throws Exception {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_b, 2);
+		list.add(m_b);
+
+		JSONArray json = write(list.withQuantities());
+		assertEquals(3, json.length());
+		assertFalse(json.getJSONObject(0).has("quantity"));
+		JSONObject bulk = json.getJSONObject(1);
+		assertEquals(2, bulk.getInt("quantity"));
+		bulk.remove("quantity");
+		assertEquals(m_b.toJson().toString(), bulk.toString());
+		// a tag added on its own stays on its own
+		assertFalse(json.getJSONObject(2).has("quantity"));
+	}
+
+	public void testWithoutBulkEntries() {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(m_a);
+		list.add(m_a);
+		assertSame(list, list.withQuantities());
+	}
+
+	public void testNullTitle() throws Exception {
+		TagDescriptorList list = new TagDescriptorList();
+		list.add(new SmartPosterTagDescriptor("label", null,
+				Uri.parse("http://mktags.com/")));
+
+		JSONObject json = write(list).getJSONObject(0);
+		assertFalse(json.has("data_sp_title"));
+		assertEquals(list.toJson().toString(), write(list).toString());
+	}
+
+	private static String labels(TagDescriptorList list) {
+		StringBuilder labels = new StringBuilder();
+		for (TagDescriptor tag : list)
+			labels.append(tag.getLabel());
+		return labels.toString();
+	}
+
+	private static JSONArray write(TagDescriptorSource tags) throws Exception {
+		StringWriter out = new StringWriter();
+		JsonStreamWriter writer = new JsonStreamWriter(out);
+		tags.writeJson(writer);
+		writer.flush();
+		return new JSONArray(out.toString());
+	}
+
+}